@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.DisplayMetrics;
+import android.util.TypedValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Loads an image of a URI or a resource in a worker thread.
+ * </p>
+ * <p>
+ * The bounds are read in UI thread by {@link #readBounds()} at first,
+ * so that the view can be laid out before the image is decoded.
+ * Then the image is decoded by {@link #start(int)} at the sample size which suits the view.
+ * It's kept while the image is displayed so that the image can be decoded again
+ * at another sample size.
+ * All methods must be called in UI thread, and the callback is called in UI thread.
+ * </p>
+ */
+final class AsyncImageLoader {
+    /**
+     * The callback to be notified when the image has been decoded.
+     */
+    interface Callback {
+        /**
+         * @param loader the loader which has decoded the image
+         * @param bitmap the decoded image, or null if it can not be decoded
+         * @param sampleSize the sample size which the image has been decoded at
+         */
+        void onImageLoaded(AsyncImageLoader loader, Bitmap bitmap, int sampleSize);
+    }
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ImageLoader");
+        }
+    };
+
+    /**
+     * The worker thread shared by all instances.
+     * One thread is enough because only the latest image of each view is decoded.
+     */
+    private static final ThreadPoolExecutor sLoadExecutor;
+
+    static {
+        sLoadExecutor = new ThreadPoolExecutor(1, 1,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+        sLoadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Context mContext;
+
+    /** The URI of the image, or null if it's a resource */
+    private final Uri mUri;
+
+    private final int mResId;
+
+    private final BitmapPool mBitmapPool;
+
+    private final Callback mCallback;
+
+    /** The size of the encoded image */
+    private int mWidth;
+
+    private int mHeight;
+
+    /** The ratio of the intrinsic size of the drawable to the size of the encoded image */
+    private float mDensityScale = 1.0f;
+
+    /** The running task, or null if it's not started or has been cancelled */
+    private LoadTask mTask;
+
+    private AsyncImageLoader(Context context, Uri uri, int resId, BitmapPool bitmapPool, Callback callback) {
+        mContext = context.getApplicationContext();
+        mUri = uri;
+        mResId = resId;
+        mBitmapPool = bitmapPool;
+        mCallback = callback;
+    }
+
+    static AsyncImageLoader forUri(Context context, Uri uri, BitmapPool bitmapPool, Callback callback) {
+        return new AsyncImageLoader(context, uri, 0, bitmapPool, callback);
+    }
+
+    static AsyncImageLoader forResource(Context context, int resId, BitmapPool bitmapPool, Callback callback) {
+        return new AsyncImageLoader(context, null, resId, bitmapPool, callback);
+    }
+
+    /**
+     * Read only the bounds of the image.
+     *
+     * @return false if the image can not be decoded as a bitmap
+     */
+    boolean readBounds() {
+        if (mUri == null) {
+            // Scaled by the density as same as BitmapDrawable of resources
+            TypedValue value = new TypedValue();
+            try {
+                mContext.getResources().getValue(mResId, value, true);
+            } catch (Resources.NotFoundException e) {
+                return false;
+            }
+            if (value.density == TypedValue.DENSITY_DEFAULT) {
+                value.density = DisplayMetrics.DENSITY_DEFAULT;
+            }
+            if (value.density != TypedValue.DENSITY_NONE) {
+                mDensityScale = (float) mContext.getResources().getDisplayMetrics().densityDpi / value.density;
+            }
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(options);
+        mWidth = options.outWidth;
+        mHeight = options.outHeight;
+        return mWidth > 0 && mHeight > 0;
+    }
+
+    /**
+     * @return the URI of the image, or null if it's a resource
+     */
+    Uri getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return the resource id of the image, or 0 if it's a URI
+     */
+    int getResId() {
+        return mResId;
+    }
+
+    /**
+     * @return the width of the encoded image
+     */
+    int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return the height of the encoded image
+     */
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the width of the drawable which shows the image
+     */
+    int getIntrinsicWidth() {
+        return Math.round(mWidth * mDensityScale);
+    }
+
+    /**
+     * @return the height of the drawable which shows the image
+     */
+    int getIntrinsicHeight() {
+        return Math.round(mHeight * mDensityScale);
+    }
+
+    /**
+     * @return the ratio of the intrinsic size to the size of the encoded image
+     */
+    float getDensityScale() {
+        return mDensityScale;
+    }
+
+    boolean isStarted() {
+        return mTask != null;
+    }
+
+    /**
+     * Start decoding in the worker thread.
+     *
+     * @param sampleSize the sample size to decode the image
+     */
+    void start(int sampleSize) {
+        cancel();
+        mTask = new LoadTask(sampleSize);
+        sLoadExecutor.execute(mTask);
+    }
+
+    /**
+     * Cancel decoding. It can be started again by {@link #start(int)}.
+     */
+    void cancel() {
+        if (mTask != null) {
+            mTask.mCancelled = true;
+            sLoadExecutor.remove(mTask);
+            mTask = null;
+        }
+    }
+
+    /**
+     * Decode the image in the current thread reusing a pooled bitmap if possible.
+     *
+     * @return the decoded image, or null if it can not be decoded
+     */
+    Bitmap decode(int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inScaled = false;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inBitmap = mBitmapPool.get(
+                TileManager.divideRoundUp(mWidth, sampleSize),
+                TileManager.divideRoundUp(mHeight, sampleSize),
+                options.inPreferredConfig);
+        if (options.inBitmap == null) {
+            return decode(options);
+        }
+
+        try {
+            return decode(options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap can't be reused for this image
+            mBitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return decode(options);
+        }
+    }
+
+    private Bitmap decode(BitmapFactory.Options options) {
+        InputStream in = null;
+        try {
+            if (mUri != null) {
+                in = mContext.getContentResolver().openInputStream(mUri);
+            } else {
+                in = mContext.getResources().openRawResource(mResId);
+            }
+            return BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException | Resources.NotFoundException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Called in UI thread when the image has been decoded.
+     */
+    private void onTaskFinished(LoadTask task, Bitmap bitmap) {
+        if (task != mTask) {
+            // Cancelled while decoding
+            if (bitmap != null) {
+                mBitmapPool.put(bitmap);
+            }
+            return;
+        }
+        mTask = null;
+        mCallback.onImageLoaded(this, bitmap, task.mSampleSize);
+    }
+
+    /**
+     * Decodes the image in the worker thread.
+     */
+    private class LoadTask implements Runnable {
+        final int mSampleSize;
+
+        /** It's accessed from both UI thread and the worker thread. */
+        volatile boolean mCancelled;
+
+        LoadTask(int sampleSize) {
+            mSampleSize = sampleSize;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+
+            Bitmap decoded;
+            try {
+                decoded = decode(mSampleSize);
+            } catch (OutOfMemoryError e) {
+                // The callback is notified of the failure as same as an image which can't be decoded
+                decoded = null;
+            }
+            final Bitmap result = decoded;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onTaskFinished(LoadTask.this, result);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * <p>
+ * A pool of bitmaps which are no longer used.
+ * They are reused through {@link android.graphics.BitmapFactory.Options#inBitmap}
+ * to avoid allocating new pixel buffers.
+ * </p>
+ * <p>
+ * The bitmaps are grouped by their width, height and config,
+ * and the oldest one is recycled when the byte count exceeds the limit.
+ * However, at least one bitmap is kept even if it's larger than the limit
+ * so that a large image can be reused when it's swapped with another one.
+ * This class is thread safe.
+ * </p>
+ */
+final class BitmapPool {
+    private final HashMap<Key, ArrayList<Bitmap>> mGroups = new HashMap<>();
+
+    /** All pooled bitmaps in the order they are put */
+    private final ArrayDeque<Bitmap> mOrder = new ArrayDeque<>();
+
+    /** The key which is used to look up groups to avoid instantiating it every time. */
+    private final Key mLookupKey = new Key();
+
+    private final int mMaxSize;
+
+    private int mSize;
+
+    /**
+     * @param maxSize the maximum byte count of the pooled bitmaps
+     */
+    BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Take a bitmap out of the pool.
+     *
+     * @return a mutable bitmap which has the specified size and config, or null if there is no such bitmap.
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayList<Bitmap> group = mGroups.get(mLookupKey.set(width, height, config));
+        if (group == null || group.isEmpty()) {
+            return null;
+        }
+        Bitmap bitmap = group.remove(group.size() - 1);
+        mOrder.removeFirstOccurrence(bitmap);
+        mSize -= bitmap.getByteCount();
+        return bitmap;
+    }
+
+    /**
+     * Put a bitmap which is no longer used into the pool.
+     * The caller must not use the bitmap after calling this method.
+     * If it can't be reused, it's recycled immediately.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getConfig() == null) {
+            bitmap.recycle();
+            return;
+        }
+
+        Key key = new Key().set(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> group = mGroups.get(key);
+        if (group == null) {
+            group = new ArrayList<>();
+            mGroups.put(key, group);
+        }
+        group.add(bitmap);
+        mOrder.addLast(bitmap);
+        mSize += bitmap.getByteCount();
+
+        while (mSize > mMaxSize && mOrder.size() > 1) {
+            Bitmap eldest = mOrder.removeFirst();
+            mGroups.get(mLookupKey.set(eldest.getWidth(), eldest.getHeight(), eldest.getConfig()))
+                    .remove(eldest);
+            mSize -= eldest.getByteCount();
+            eldest.recycle();
+        }
+    }
+
+    /**
+     * Recycle all pooled bitmaps.
+     */
+    synchronized void clear() {
+        for (Bitmap bitmap : mOrder) {
+            bitmap.recycle();
+        }
+        mOrder.clear();
+        mGroups.clear();
+        mSize = 0;
+    }
+
+    private static final class Key {
+        int mWidth;
+
+        int mHeight;
+
+        Bitmap.Config mConfig;
+
+        Key set(int width, int height, Bitmap.Config config) {
+            mWidth = width;
+            mHeight = height;
+            mConfig = config;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mWidth == key.mWidth && mHeight == key.mHeight && mConfig == key.mConfig;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mWidth * 31 + mHeight) * 31 + mConfig.hashCode();
+        }
+    }
+}
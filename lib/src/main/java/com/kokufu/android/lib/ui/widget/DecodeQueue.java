@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+/**
+ * <p>
+ * A binary min-heap of items keyed by primitive {@code long} priorities.
+ * The item with the smallest key is polled first.
+ * </p>
+ * <p>
+ * The keys are kept in a primitive array, so that all keys can be updated
+ * and the heap can be rebuilt in linear time by {@link #reprioritize(KeyFunction)}
+ * without allocating objects. The arrays grow only when the heap exceeds their capacity.
+ * This class is thread safe.
+ * </p>
+ */
+final class DecodeQueue<T> {
+    /**
+     * Calculates the priority of an item. A smaller key means a higher priority.
+     */
+    interface KeyFunction<T> {
+        long getKey(T item);
+    }
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private long[] mKeys = new long[INITIAL_CAPACITY];
+
+    private Object[] mItems = new Object[INITIAL_CAPACITY];
+
+    private int mSize;
+
+    synchronized void add(T item, long key) {
+        if (mSize == mKeys.length) {
+            final int capacity = mSize * 2;
+            final long[] keys = new long[capacity];
+            final Object[] items = new Object[capacity];
+            System.arraycopy(mKeys, 0, keys, 0, mSize);
+            System.arraycopy(mItems, 0, items, 0, mSize);
+            mKeys = keys;
+            mItems = items;
+        }
+        mKeys[mSize] = key;
+        mItems[mSize] = item;
+        mSize++;
+        siftUp(mSize - 1);
+    }
+
+    /**
+     * @return the item which has the smallest key, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T poll() {
+        if (mSize == 0) {
+            return null;
+        }
+        final T item = (T) mItems[0];
+        removeAt(0);
+        return item;
+    }
+
+    /**
+     * @return true if the item has been in the queue
+     */
+    synchronized boolean remove(T item) {
+        for (int i = 0; i < mSize; i++) {
+            if (mItems[i] == item) {
+                removeAt(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recalculate the keys of all items and rebuild the heap.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void reprioritize(KeyFunction<T> function) {
+        for (int i = 0; i < mSize; i++) {
+            mKeys[i] = function.getKey((T) mItems[i]);
+        }
+        for (int i = mSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    private void removeAt(int index) {
+        mSize--;
+        if (index != mSize) {
+            mKeys[index] = mKeys[mSize];
+            mItems[index] = mItems[mSize];
+            mItems[mSize] = null;
+            siftDown(index);
+            siftUp(index);
+        } else {
+            mItems[mSize] = null;
+        }
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            final int parent = (index - 1) / 2;
+            if (mKeys[parent] <= mKeys[index]) {
+                break;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            final int left = index * 2 + 1;
+            if (left >= mSize) {
+                break;
+            }
+            final int right = left + 1;
+            final int child = right < mSize && mKeys[right] < mKeys[left] ? right : left;
+            if (mKeys[index] <= mKeys[child]) {
+                break;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        final long key = mKeys[i];
+        mKeys[i] = mKeys[j];
+        mKeys[j] = key;
+        final Object item = mItems[i];
+        mItems[i] = mItems[j];
+        mItems[j] = item;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * <p>
+ * The second tier of the tile cache, which keeps the pixels of decoded tiles in files
+ * so that they can be reused when the same image is opened again.
+ * </p>
+ * <p>
+ * Each image has its own directory, which is identified by the path, the length and
+ * the last modified time of the image file. It contains two files.
+ * </p>
+ * <pre>
+ * tiles.idx:  int magic ("PITC"), int version, int image width, int image height,
+ *             then an entry per tile of every pyramid level in level, row, column order:
+ *             long offset, int height, int width (0 if the tile is not stored)
+ * tiles.dat:  the raw ARGB_8888 pixels of the stored tiles
+ * </pre>
+ * <p>
+ * The index is memory-mapped. The pixels are read and written at their offsets
+ * through a direct buffer per thread, so a stored tile is copied into a bitmap
+ * without decoding it, and no mapping is left per tile.
+ * When the directories exceed the limit, the least recently opened ones are deleted.
+ * Tiles are not stored any more when the current image alone exceeds the limit.
+ * </p>
+ * <p>
+ * The instances are shared in the process per directory, so that the views which open
+ * the same image allocate the space of {@code tiles.dat} from one place.
+ * An instance is closed when all views which have opened it close it.
+ * This class is thread safe.
+ * </p>
+ */
+final class DiskTileCache {
+    private static final int MAGIC = 0x50495443; // "PITC"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int ENTRY_SIZE = 16;
+
+    private static final String INDEX_FILE = "tiles.idx";
+
+    private static final String DATA_FILE = "tiles.dat";
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /** The buffer of each thread which transfers the pixels of a tile */
+    private static final ThreadLocal<ByteBuffer> sBuffers = new ThreadLocal<>();
+
+    /** The opened instances keyed by their directories. It's also the lock of {@link #mRefCount}. */
+    private static final HashMap<File, DiskTileCache> sOpenCaches = new HashMap<>();
+
+    private final File mDir;
+
+    private final RandomAccessFile mIndexFile;
+
+    private final RandomAccessFile mDataFile;
+
+    private final MappedByteBuffer mIndex;
+
+    private final FileChannel mData;
+
+    /** The index of the first entry of each level */
+    private final int[] mLevelOffsets;
+
+    /** The number of the columns of each level */
+    private final int[] mLevelColumns;
+
+    private final long mMaxSize;
+
+    /** The byte count of the data file including the regions being written */
+    private long mDataSize;
+
+    private boolean mClosed;
+
+    /** The number of {@link #open} calls which haven't been closed */
+    private int mRefCount;
+
+    /**
+     * Open the cache of an image. Its directory is created if it doesn't exist.
+     * If it's already opened, the same instance is returned.
+     * Each call has to be paired with {@link #close()}.
+     *
+     * @param rootDir the directory which contains the directories of images
+     * @param pathName the path of the image file
+     * @param imageWidth the width of the image
+     * @param imageHeight the height of the image
+     * @param tileSize the width and height of a tile in decoded pixels
+     * @param maxSize the maximum byte count of all directories in {@code rootDir}
+     * @throws IOException if the files can not be opened
+     */
+    static DiskTileCache open(File rootDir, String pathName, int imageWidth, int imageHeight,
+                              int tileSize, long maxSize) throws IOException {
+        final File source = new File(pathName);
+        final String name = Integer.toHexString(source.getAbsolutePath().hashCode())
+                + "_" + Long.toHexString(source.length())
+                + "_" + Long.toHexString(source.lastModified());
+        final File dir = new File(rootDir, name);
+        synchronized (sOpenCaches) {
+            DiskTileCache cache = sOpenCaches.get(dir);
+            if (cache == null) {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    throw new IOException("can not create " + dir);
+                }
+                // The last modified time of the directory is the time it's opened last.
+                dir.setLastModified(System.currentTimeMillis());
+                cache = new DiskTileCache(dir, imageWidth, imageHeight, tileSize, maxSize);
+                sOpenCaches.put(dir, cache);
+                trim(rootDir, maxSize);
+            }
+            cache.mRefCount++;
+            return cache;
+        }
+    }
+
+    private DiskTileCache(File dir, int imageWidth, int imageHeight, int tileSize, long maxSize)
+            throws IOException {
+        mDir = dir;
+        mMaxSize = maxSize;
+
+        int maxLevel = 0;
+        while ((tileSize << maxLevel) < Math.max(imageWidth, imageHeight)) {
+            maxLevel++;
+        }
+        mLevelOffsets = new int[maxLevel + 1];
+        mLevelColumns = new int[maxLevel + 1];
+        int entryCount = 0;
+        for (int level = 0; level <= maxLevel; level++) {
+            mLevelOffsets[level] = entryCount;
+            mLevelColumns[level] = TileManager.divideRoundUp(imageWidth, tileSize << level);
+            entryCount += mLevelColumns[level] * TileManager.divideRoundUp(imageHeight, tileSize << level);
+        }
+        final long indexSize = HEADER_SIZE + (long) entryCount * ENTRY_SIZE;
+
+        final File indexFile = new File(dir, INDEX_FILE);
+        final File dataFile = new File(dir, DATA_FILE);
+        mIndexFile = new RandomAccessFile(indexFile, "rw");
+        mDataFile = new RandomAccessFile(dataFile, "rw");
+        try {
+            final boolean valid = mIndexFile.length() == indexSize
+                    && mIndexFile.readInt() == MAGIC
+                    && mIndexFile.readInt() == VERSION
+                    && mIndexFile.readInt() == imageWidth
+                    && mIndexFile.readInt() == imageHeight;
+            if (!valid) {
+                // Start from scratch. Extending the file fills the entries with 0.
+                mIndexFile.setLength(0);
+                mIndexFile.setLength(indexSize);
+                mDataFile.setLength(0);
+            }
+            mIndex = mIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+            if (!valid) {
+                mIndex.putInt(0, MAGIC);
+                mIndex.putInt(4, VERSION);
+                mIndex.putInt(8, imageWidth);
+                mIndex.putInt(12, imageHeight);
+            }
+            mData = mDataFile.getChannel();
+            mDataSize = mData.size();
+        } catch (IOException e) {
+            mIndexFile.close();
+            mDataFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read a stored tile.
+     *
+     * @param reuse a bitmap which is used if its size and config fit the tile. It can be null.
+     * @return the tile, which is {@code reuse} or a new bitmap, or null if it's not stored
+     */
+    Bitmap get(int level, int column, int row, Bitmap reuse) {
+        final long offset;
+        final int width;
+        final int height;
+        synchronized (this) {
+            if (mClosed || level >= mLevelOffsets.length) {
+                return null;
+            }
+            final int position = getEntryPosition(level, column, row);
+            width = mIndex.getInt(position + 12);
+            if (width <= 0) {
+                return null;
+            }
+            height = mIndex.getInt(position + 8);
+            offset = mIndex.getLong(position);
+        }
+
+        final ByteBuffer buffer = obtainBuffer(width * height * BYTES_PER_PIXEL);
+        try {
+            while (buffer.hasRemaining()) {
+                if (mData.read(buffer, offset + buffer.position()) < 0) {
+                    // The data file has been truncated
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        buffer.flip();
+
+        final Bitmap bitmap;
+        if (reuse != null && reuse.isMutable() && reuse.getWidth() == width && reuse.getHeight() == height
+                && reuse.getConfig() == Bitmap.Config.ARGB_8888) {
+            bitmap = reuse;
+        } else {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.copyPixelsFromBuffer(buffer);
+        return bitmap;
+    }
+
+    /**
+     * @return true if the tile is stored
+     */
+    synchronized boolean contains(int level, int column, int row) {
+        return !mClosed && level < mLevelOffsets.length
+                && mIndex.getInt(getEntryPosition(level, column, row) + 12) > 0;
+    }
+
+    /**
+     * Store a tile. It's ignored if the tile is already stored.
+     * The bitmap must not be changed while this method runs.
+     *
+     * @return false if the tile can't be stored because the cache is full or closed
+     */
+    boolean put(int level, int column, int row, Bitmap bitmap) {
+        if (bitmap.getConfig() != Bitmap.Config.ARGB_8888
+                || bitmap.getRowBytes() != bitmap.getWidth() * BYTES_PER_PIXEL) {
+            return false;
+        }
+        final long length = (long) bitmap.getWidth() * bitmap.getHeight() * BYTES_PER_PIXEL;
+        final int position;
+        final long offset;
+        synchronized (this) {
+            if (mClosed || level >= mLevelOffsets.length || mDataSize + length > mMaxSize) {
+                return false;
+            }
+            position = getEntryPosition(level, column, row);
+            if (mIndex.getInt(position + 12) > 0) {
+                return true;
+            }
+            offset = mDataSize;
+            mDataSize += length;
+        }
+
+        final ByteBuffer buffer = obtainBuffer((int) length);
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+        try {
+            // Writing beyond the end extends the file.
+            while (buffer.hasRemaining()) {
+                mData.write(buffer, offset + buffer.position());
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (mClosed) {
+                return false;
+            }
+            // The width is written last because it marks the entry valid.
+            mIndex.putLong(position, offset);
+            mIndex.putInt(position + 8, bitmap.getHeight());
+            mIndex.putInt(position + 12, bitmap.getWidth());
+        }
+        return true;
+    }
+
+    /**
+     * Close the files when all {@link #open} calls have been closed.
+     * The following calls of {@link #get} and {@link #put} are ignored.
+     * The writes in progress are stopped before the files can be opened again,
+     * so they never overlap the regions allocated by the next instance.
+     */
+    void close() {
+        synchronized (sOpenCaches) {
+            if (mRefCount == 0 || --mRefCount > 0) {
+                return;
+            }
+            sOpenCaches.remove(mDir);
+            synchronized (this) {
+                mClosed = true;
+                mIndex.force();
+                try {
+                    // It waits for the reads and writes in other threads to stop.
+                    mIndexFile.close();
+                    mDataFile.close();
+                } catch (IOException e) {
+                    // The stored tiles are only a cache.
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the buffer of the current thread whose limit is {@code length}
+     */
+    private static ByteBuffer obtainBuffer(int length) {
+        ByteBuffer buffer = sBuffers.get();
+        if (buffer == null || buffer.capacity() < length) {
+            buffer = ByteBuffer.allocateDirect(length);
+            sBuffers.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(length);
+        return buffer;
+    }
+
+    private int getEntryPosition(int level, int column, int row) {
+        return HEADER_SIZE + (mLevelOffsets[level] + row * mLevelColumns[level] + column) * ENTRY_SIZE;
+    }
+
+    /**
+     * Delete the least recently opened directories until the total size fits the limit.
+     * The opened directories are kept. It must be called with the lock of {@link #sOpenCaches}.
+     */
+    private static void trim(File rootDir, long maxSize) {
+        final File[] dirs = rootDir.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        long size = 0;
+        for (File dir : dirs) {
+            size += getSize(dir);
+        }
+        Arrays.sort(dirs, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < dirs.length && size > maxSize; i++) {
+            if (sOpenCaches.containsKey(dirs[i])) {
+                continue;
+            }
+            size -= getSize(dirs[i]);
+            delete(dirs[i]);
+        }
+    }
+
+    private static long getSize(File file) {
+        final File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long size = 0;
+        for (File child : children) {
+            size += getSize(child);
+        }
+        return size;
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+/**
+ * <p>
+ * A snapshot of the frame durations during the gestures.
+ * </p>
+ * <p>
+ * The frame duration is the interval of the frame times of {@link android.view.Choreographer}
+ * while the view is scrolling, flinging or zooming.
+ * A frame is janky if its duration exceeds the frame budget of the display
+ * by half a frame or more, that is, one or more frames have been dropped.
+ * The gestures are {@link PinchableImageView#GESTURE_SCROLL} for {@code TOUCH_MODE_SCROLL},
+ * {@link PinchableImageView#GESTURE_FLING} for {@code TOUCH_MODE_FLING}
+ * and {@link PinchableImageView#GESTURE_ZOOM} for {@code TOUCH_MODE_MULTI}.
+ * </p>
+ *
+ * @see PinchableImageView#getFrameStats()
+ */
+public final class FrameStats {
+    private final long mFrameBudgetNanos;
+
+    private final int[] mFrameCounts;
+
+    private final int[] mJankyFrameCounts;
+
+    private final long[] mTotalNanos;
+
+    private final long[] mMaxNanos;
+
+    FrameStats(long frameBudgetNanos, int[] frameCounts, int[] jankyFrameCounts,
+               long[] totalNanos, long[] maxNanos) {
+        mFrameBudgetNanos = frameBudgetNanos;
+        mFrameCounts = frameCounts.clone();
+        mJankyFrameCounts = jankyFrameCounts.clone();
+        mTotalNanos = totalNanos.clone();
+        mMaxNanos = maxNanos.clone();
+    }
+
+    /**
+     * @return the duration of a frame of the display in nanoseconds
+     */
+    public long getFrameBudgetNanos() {
+        return mFrameBudgetNanos;
+    }
+
+    /**
+     * @param gesture one of {@link PinchableImageView#GESTURE_SCROLL},
+     *                {@link PinchableImageView#GESTURE_ZOOM} and {@link PinchableImageView#GESTURE_FLING}
+     * @return the number of frames during the gesture
+     */
+    public int getFrameCount(int gesture) {
+        return mFrameCounts[gesture];
+    }
+
+    /**
+     * @param gesture one of {@link PinchableImageView#GESTURE_SCROLL},
+     *                {@link PinchableImageView#GESTURE_ZOOM} and {@link PinchableImageView#GESTURE_FLING}
+     * @return the number of frames during the gesture which exceeded the frame budget
+     */
+    public int getJankyFrameCount(int gesture) {
+        return mJankyFrameCounts[gesture];
+    }
+
+    /**
+     * @param gesture one of {@link PinchableImageView#GESTURE_SCROLL},
+     *                {@link PinchableImageView#GESTURE_ZOOM} and {@link PinchableImageView#GESTURE_FLING}
+     * @return the mean frame duration in nanoseconds, or 0 if there is no frame
+     */
+    public long getMeanFrameNanos(int gesture) {
+        return mFrameCounts[gesture] == 0 ? 0 : mTotalNanos[gesture] / mFrameCounts[gesture];
+    }
+
+    /**
+     * @param gesture one of {@link PinchableImageView#GESTURE_SCROLL},
+     *                {@link PinchableImageView#GESTURE_ZOOM} and {@link PinchableImageView#GESTURE_FLING}
+     * @return the maximum frame duration in nanoseconds
+     */
+    public long getMaxFrameNanos(int gesture) {
+        return mMaxNanos[gesture];
+    }
+
+    @Override
+    public String toString() {
+        return "FrameStats{budget=" + mFrameBudgetNanos
+                + ", scroll=" + toString(PinchableImageView.GESTURE_SCROLL)
+                + ", fling=" + toString(PinchableImageView.GESTURE_FLING)
+                + ", zoom=" + toString(PinchableImageView.GESTURE_ZOOM)
+                + "}";
+    }
+
+    private String toString(int gesture) {
+        return "{frames=" + mFrameCounts[gesture]
+                + ", janky=" + mJankyFrameCounts[gesture]
+                + ", mean=" + getMeanFrameNanos(gesture)
+                + ", max=" + mMaxNanos[gesture]
+                + "}";
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+/**
+ * Accumulates the frame durations of each gesture.
+ * Recording a frame doesn't allocate any objects.
+ *
+ * @see FrameStats
+ */
+final class FrameStatsCounter {
+    private final long mFrameBudgetNanos;
+
+    /**
+     * Frames which are a little longer than the budget are not janky,
+     * because the frame times of vsync jitter.
+     */
+    private final long mJankThresholdNanos;
+
+    private final int[] mFrameCounts;
+
+    private final int[] mJankyFrameCounts;
+
+    private final long[] mTotalNanos;
+
+    private final long[] mMaxNanos;
+
+    /**
+     * @param gestureCount the number of the gestures
+     * @param frameBudgetNanos the duration of a frame of the display
+     */
+    FrameStatsCounter(int gestureCount, long frameBudgetNanos) {
+        mFrameBudgetNanos = frameBudgetNanos;
+        mJankThresholdNanos = frameBudgetNanos + frameBudgetNanos / 2;
+        mFrameCounts = new int[gestureCount];
+        mJankyFrameCounts = new int[gestureCount];
+        mTotalNanos = new long[gestureCount];
+        mMaxNanos = new long[gestureCount];
+    }
+
+    void record(int gesture, long frameNanos) {
+        mFrameCounts[gesture]++;
+        if (frameNanos > mJankThresholdNanos) {
+            mJankyFrameCounts[gesture]++;
+        }
+        mTotalNanos[gesture] += frameNanos;
+        if (frameNanos > mMaxNanos[gesture]) {
+            mMaxNanos[gesture] = frameNanos;
+        }
+    }
+
+    FrameStats getStats() {
+        return new FrameStats(mFrameBudgetNanos, mFrameCounts, mJankyFrameCounts, mTotalNanos, mMaxNanos);
+    }
+
+    void reset() {
+        for (int i = 0; i < mFrameCounts.length; i++) {
+            mFrameCounts[i] = 0;
+            mJankyFrameCounts[i] = 0;
+            mTotalNanos[i] = 0;
+            mMaxNanos[i] = 0;
+        }
+    }
+}
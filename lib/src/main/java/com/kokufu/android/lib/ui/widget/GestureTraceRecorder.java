@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.view.MotionEvent;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Records the touch events, the touch mode transitions and the transforms
+ * into a ring buffer which is allocated in advance.
+ * When the buffer is full, the oldest records are overwritten.
+ * </p>
+ * <p>
+ * The format of {@link #dump(OutputStream)} is big endian as below.
+ * </p>
+ * <pre>
+ * header:  int magic ("PIVT"), int version, int record count
+ * record:  int time (microseconds from the first record),
+ *          byte type, byte arg0, byte arg1, byte pointer count,
+ *          float v0, float v1, float v2, float v3
+ * </pre>
+ * <ul>
+ * <li>{@link #TYPE_EVENT}: arg0 is the masked action, arg1 is the action index,
+ * v0..v3 are x and y of the first {@link #MAX_POINTERS} pointers.</li>
+ * <li>{@link #TYPE_TOUCH_MODE}: arg0 is the ordinal of the new touch mode.</li>
+ * <li>{@link #TYPE_TRANSFORM}: v0..v3 are scale x, scale y, translate x and translate y
+ * which have been pushed to the image matrix.</li>
+ * <li>{@link #TYPE_HISTORY}: a sample batched into the following {@link #TYPE_EVENT} record,
+ * from the oldest one. The layout is the same as {@link #TYPE_EVENT}.</li>
+ * </ul>
+ * <p>
+ * Recording doesn't allocate objects. This class is not thread safe.
+ * </p>
+ */
+final class GestureTraceRecorder {
+    static final int MAGIC = 0x50495654; // "PIVT"
+
+    static final int VERSION = 2;
+
+    static final int TYPE_EVENT = 0;
+
+    static final int TYPE_TOUCH_MODE = 1;
+
+    static final int TYPE_TRANSFORM = 2;
+
+    static final int TYPE_HISTORY = 3;
+
+    /** The number of pointers whose coordinates are recorded */
+    static final int MAX_POINTERS = 2;
+
+    private static final int VALUES_PER_RECORD = 4;
+
+    private final long[] mTimes;
+
+    /** type, arg0, arg1 and pointer count packed into an int */
+    private final int[] mHeaders;
+
+    private final float[] mValues;
+
+    /** The index where the next record is written */
+    private int mNext;
+
+    private int mCount;
+
+    /**
+     * @param capacity the maximum number of records
+     */
+    GestureTraceRecorder(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mTimes = new long[capacity];
+        mHeaders = new int[capacity];
+        mValues = new float[capacity * VALUES_PER_RECORD];
+    }
+
+    int getCapacity() {
+        return mTimes.length;
+    }
+
+    /**
+     * Record an event and the samples batched into it.
+     */
+    void recordEvent(MotionEvent event) {
+        final int pointerCount = Math.min(event.getPointerCount(), MAX_POINTERS);
+        final float[] values = mValues;
+        final int historySize = event.getHistorySize();
+        for (int h = 0; h < historySize; h++) {
+            final int i = append(event.getHistoricalEventTime(h) * 1000000L, TYPE_HISTORY,
+                    event.getActionMasked(), event.getActionIndex(), pointerCount);
+            final int offset = i * VALUES_PER_RECORD;
+            for (int p = 0; p < MAX_POINTERS; p++) {
+                if (p < pointerCount) {
+                    values[offset + p * 2] = event.getHistoricalX(p, h);
+                    values[offset + p * 2 + 1] = event.getHistoricalY(p, h);
+                } else {
+                    values[offset + p * 2] = 0;
+                    values[offset + p * 2 + 1] = 0;
+                }
+            }
+        }
+
+        final int i = append(event.getEventTime() * 1000000L, TYPE_EVENT,
+                event.getActionMasked(), event.getActionIndex(), pointerCount);
+        final int offset = i * VALUES_PER_RECORD;
+        for (int p = 0; p < MAX_POINTERS; p++) {
+            if (p < pointerCount) {
+                values[offset + p * 2] = event.getX(p);
+                values[offset + p * 2 + 1] = event.getY(p);
+            } else {
+                values[offset + p * 2] = 0;
+                values[offset + p * 2 + 1] = 0;
+            }
+        }
+    }
+
+    void recordTouchMode(long timeNanos, int touchMode) {
+        final int i = append(timeNanos, TYPE_TOUCH_MODE, touchMode, 0, 0);
+        final int offset = i * VALUES_PER_RECORD;
+        for (int v = 0; v < VALUES_PER_RECORD; v++) {
+            mValues[offset + v] = 0;
+        }
+    }
+
+    void recordTransform(long timeNanos, float scaleX, float scaleY, float translateX, float translateY) {
+        final int i = append(timeNanos, TYPE_TRANSFORM, 0, 0, 0);
+        final float[] values = mValues;
+        final int offset = i * VALUES_PER_RECORD;
+        values[offset] = scaleX;
+        values[offset + 1] = scaleY;
+        values[offset + 2] = translateX;
+        values[offset + 3] = translateY;
+    }
+
+    /**
+     * @return the index of the new record
+     */
+    private int append(long timeNanos, int type, int arg0, int arg1, int pointerCount) {
+        final int i = mNext;
+        mTimes[i] = timeNanos;
+        mHeaders[i] = (type & 0xff) << 24 | (arg0 & 0xff) << 16 | (arg1 & 0xff) << 8 | (pointerCount & 0xff);
+        mNext = i + 1 == mTimes.length ? 0 : i + 1;
+        if (mCount < mTimes.length) {
+            mCount++;
+        }
+        return i;
+    }
+
+    /**
+     * Write the records from the oldest one. The stream is not closed.
+     *
+     * @throws IOException if it fails to write
+     */
+    void dump(OutputStream out) throws IOException {
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(mCount);
+
+        final int capacity = mTimes.length;
+        final int first = (mNext - mCount + capacity) % capacity;
+        final long baseTimeNanos = mTimes[first];
+        for (int n = 0; n < mCount; n++) {
+            final int i = (first + n) % capacity;
+            dos.writeInt((int) ((mTimes[i] - baseTimeNanos) / 1000));
+            dos.writeInt(mHeaders[i]);
+            final int offset = i * VALUES_PER_RECORD;
+            for (int v = 0; v < VALUES_PER_RECORD; v++) {
+                dos.writeFloat(mValues[offset + v]);
+            }
+        }
+        dos.flush();
+    }
+}
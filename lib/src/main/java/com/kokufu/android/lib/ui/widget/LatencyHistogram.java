@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+/**
+ * <p>
+ * A histogram of latencies with fixed buckets.
+ * Recording a latency doesn't allocate any objects.
+ * </p>
+ * <p>
+ * The bucket {@code i} counts the latencies which are larger than or equal to
+ * {@code getBucketUpperBoundMillis(i - 1)} and smaller than {@code getBucketUpperBoundMillis(i)}.
+ * The last bucket has no upper bound.
+ * </p>
+ *
+ * @see PinchableImageView.OnFrameLatencyListener
+ */
+public final class LatencyHistogram {
+    /** The upper bounds of the buckets in milliseconds except the last one */
+    private static final int[] BUCKET_UPPER_BOUNDS_MILLIS = {
+            4, 8, 12, 16, 20, 24, 33, 50, 66, 100, 200
+    };
+
+    private final int[] mCounts = new int[BUCKET_UPPER_BOUNDS_MILLIS.length + 1];
+
+    private int mTotalCount;
+
+    private long mTotalNanos;
+
+    private long mMaxNanos;
+
+    LatencyHistogram() {
+    }
+
+    /**
+     * @return the number of the buckets
+     */
+    public int getBucketCount() {
+        return mCounts.length;
+    }
+
+    /**
+     * @param index the index of the bucket
+     * @return the exclusive upper bound of the bucket in milliseconds,
+     * or {@link Integer#MAX_VALUE} for the last bucket.
+     */
+    public int getBucketUpperBoundMillis(int index) {
+        if (index == BUCKET_UPPER_BOUNDS_MILLIS.length) {
+            return Integer.MAX_VALUE;
+        }
+        return BUCKET_UPPER_BOUNDS_MILLIS[index];
+    }
+
+    /**
+     * @param index the index of the bucket
+     * @return the number of the latencies in the bucket
+     */
+    public int getCount(int index) {
+        return mCounts[index];
+    }
+
+    /**
+     * @return the number of all recorded latencies
+     */
+    public int getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * @return the mean latency in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long getMeanNanos() {
+        return mTotalCount == 0 ? 0 : mTotalNanos / mTotalCount;
+    }
+
+    /**
+     * @return the maximum latency in nanoseconds
+     */
+    public long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    void record(long latencyNanos) {
+        final long millis = latencyNanos / 1000000L;
+        int index = 0;
+        while (index < BUCKET_UPPER_BOUNDS_MILLIS.length && millis >= BUCKET_UPPER_BOUNDS_MILLIS[index]) {
+            index++;
+        }
+        mCounts[index]++;
+        mTotalCount++;
+        mTotalNanos += latencyNanos;
+        if (latencyNanos > mMaxNanos) {
+            mMaxNanos = latencyNanos;
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mTotalCount = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+    }
+}
@@ -16,19 +16,48 @@
 
 package com.kokufu.android.lib.ui.widget;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.ColorStateList;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.DrawFilter;
 import android.graphics.Matrix;
-import android.graphics.Point;
+import android.graphics.Paint;
+import android.graphics.PaintFlagsDrawFilter;
+import android.graphics.PixelFormat;
 import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Build;
 import android.util.AttributeSet;
+import android.util.LayoutDirection;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.VelocityTracker;
 import android.view.ViewConfiguration;
 import android.view.ViewParent;
+import android.view.WindowManager;
 import android.widget.ImageView;
 import android.widget.Scroller;
 
+import com.kokufu.android.lib.ui.widget.viewport.ScaleMode;
+import com.kokufu.android.lib.ui.widget.viewport.TranslationBounds;
+import com.kokufu.android.lib.ui.widget.viewport.ViewportEngine;
+import com.kokufu.android.lib.ui.widget.viewport.ViewportTransform;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
 /**
  * <p>
  * This class is a {@link android.widget.ImageView} with zoom function.
@@ -38,6 +67,57 @@ import android.widget.Scroller;
  * </p>
  */
 public class PinchableImageView extends ImageView {
+    /**
+     * Interface definition for a callback to be invoked
+     * when a gesture has finished and its frame latencies are available.
+     */
+    public interface OnFrameLatencyListener {
+        /**
+         * <p>
+         * Called when a gesture has finished.
+         * </p>
+         * <p>
+         * Each latency is the time from {@link MotionEvent#getEventTime()} of the earliest event
+         * which has not been drawn yet, or the frame time of a fling step,
+         * to {@link #onDraw(Canvas)} of the frame which shows the resulting image matrix.
+         * </p>
+         *
+         * @param gesture one of {@link #GESTURE_SCROLL}, {@link #GESTURE_ZOOM} and {@link #GESTURE_FLING}
+         * @param histogram the latencies of the frames during the gesture.
+         *                  It's reused after this method returns,
+         *                  so copy the values if they are needed later.
+         */
+        void onFrameLatency(int gesture, LatencyHistogram histogram);
+    }
+
+    /** Scrolling by one finger */
+    public static final int GESTURE_SCROLL = 0;
+
+    /** Zooming by two fingers */
+    public static final int GESTURE_ZOOM = 1;
+
+    /** Flinging after scrolling */
+    public static final int GESTURE_FLING = 2;
+
+    private static final int GESTURE_COUNT = 3;
+
+    private static final int GESTURE_NONE = -1;
+
+    /**
+     * Decode the image at the resolution for the current scale,
+     * and decode it again at a higher resolution when the user zooms past it.
+     */
+    public static final int DECODE_POLICY_MEMORY_FIRST = 0;
+
+    /** Decode the image at the resolution for the max scale */
+    public static final int DECODE_POLICY_QUALITY_FIRST = 1;
+
+    /**
+     * Decode the image at the resolution for the max scale
+     * unless it exceeds the budget derived from {@link android.app.ActivityManager#getMemoryClass()}.
+     */
+    public static final int DECODE_POLICY_ADAPTIVE = 2;
+
     private enum TouchMode {
         TOUCH_MODE_REST,
         TOUCH_MODE_DOWN,
@@ -48,20 +128,35 @@ public class PinchableImageView extends ImageView {
         TOUCH_MODE_MULTI
     }
 
-    /** The number of values which the {@link android.graphics.Matrix} contains */
-    private static final int MATRIX_VALUES_NUM = 9;
+    private static final int INVALID_POINTER = -1;
 
-    private static final float DEFAULT_MIN_SCALE = 1.0f;
+    private static final int DEFAULT_TILE_CACHE_SIZE = (int) (Runtime.getRuntime().maxMemory() / 8);
 
-    private static final float DEFAULT_MAX_SCALE = 5.0f;
+    /** The directory in the cache directory of the app which keeps the tiles on disk */
+    private static final String DISK_TILE_CACHE_DIR = "pinchable_tiles";
 
-    private static final int INVALID_POINTER = -1;
+    private static final int DEFAULT_BITMAP_POOL_SIZE = (int) (Runtime.getRuntime().maxMemory() / 16);
 
-    private TouchMode mTouchMode = TouchMode.TOUCH_MODE_REST;
+    /** The denominator of the memory class which is used as the budget of a decoded image */
+    private static final int IMAGE_BUDGET_DIVISOR = 4;
+
+    private static final int BYTES_PER_PIXEL = 4;
 
-    private float mMinScale = DEFAULT_MIN_SCALE;
+    /** How far ahead the tiles are prefetched while scrolling */
+    private static final float PREFETCH_LOOKAHEAD = 0.2f; // seconds
 
-    private float mMaxScale = DEFAULT_MAX_SCALE;
+    /** The delay to restore the layer type after a gesture, so that successive flings keep the layer */
+    private static final int GESTURE_LAYER_HYSTERESIS = 300; // milliseconds
+
+    /**
+     * Turns off the filtering of every bitmap drawn while the image is moving.
+     * It's applied to the canvas, so that the drawable state shared with the other views
+     * which display the same resource is never touched.
+     */
+    private static final DrawFilter MOTION_DRAW_FILTER =
+            new PaintFlagsDrawFilter(Paint.FILTER_BITMAP_FLAG, 0);
+
+    private TouchMode mTouchMode = TouchMode.TOUCH_MODE_REST;
 
     private int mActivePointerId = INVALID_POINTER;
 
@@ -69,9 +164,33 @@ public class PinchableImageView extends ImageView {
      * matrix values which is used to avoid instantiating it every time.
      * You must use it in UI thread. You must NOT use it across methods.
      */
-    private float[] mTmpMatrixValues = new float[MATRIX_VALUES_NUM];
+    private float[] mTmpMatrixValues = new float[ViewportTransform.MATRIX_VALUES_NUM];
+
+    /**
+     * Clamps and scales {@link #mTransform}.
+     * The image size, the view size and the scale type are mirrored to it.
+     */
+    private final ViewportEngine mEngine = createViewportEngine();
 
-    private float[] mZoomBasisImageMatrixValues = new float[MATRIX_VALUES_NUM];
+    /**
+     * The current transform of the image, which is owned by {@link #mEngine}.
+     * It's pushed to the image matrix at {@link #onDraw(Canvas)}.
+     */
+    private final ViewportTransform mTransform = mEngine.getTransform();
+
+    /**
+     * False if the image matrix may have been changed by the parent class
+     * and {@link #mTransform} has to be loaded from it.
+     */
+    private boolean mTransformValid;
+
+    /** The cached intrinsic width of the drawable. It's -1 if there is no drawable. */
+    private int mImageWidth;
+
+    /** The cached intrinsic height of the drawable. It's -1 if there is no drawable. */
+    private int mImageHeight;
+
+    private final ViewportTransform mZoomBasisTransform = new ViewportTransform();
 
     private float mZoomBasisSpan;
 
@@ -100,6 +219,151 @@ public class PinchableImageView extends ImageView {
      */
     private FlingRunnable mFlingRunnable;
 
+    private Choreographer mChoreographer;
+
+    private boolean mMoveCoalescingEnabled;
+
+    /** True if a move has been recorded and is waiting for the next frame */
+    private boolean mMovePending;
+
+    /** The latest position of the active pointer which is waiting for the next frame */
+    private final PointF mPendingMove = new PointF();
+
+    /** The latest position of the first pointer which is waiting for the next frame */
+    private final PointF mPendingMoveFirst = new PointF();
+
+    /** The event time of the earliest move which is waiting for the next frame */
+    private long mPendingMoveTimeNanos;
+
+    /** The event time of the move which is being handled */
+    private long mMoveTimeNanos;
+
+    private OnFrameLatencyListener mOnFrameLatencyListener;
+
+    /** The histograms of each gesture. It's null when there is no listener. */
+    private LatencyHistogram[] mLatencyHistograms;
+
+    /** The gesture which has changed the transform since the last frame */
+    private int mLatencyGesture = GESTURE_NONE;
+
+    /** The start time of the latency which will be finished by the next frame */
+    private long mLatencyStartNanos;
+
+    /** The bit set of the gestures which have finished and whose histograms should be delivered */
+    private int mFinishedGestures;
+
+    /** Records the gestures for diagnostics. It's null unless it's enabled. */
+    private GestureTraceRecorder mTraceRecorder;
+
+    /** The duration of a frame of the display */
+    private long mFrameBudgetNanos;
+
+    /** Counts the frame durations of each gesture. It's null unless it's enabled. */
+    private FrameStatsCounter mFrameStatsCounter;
+
+    /** The frame time of the previous frame during a gesture, or 0 */
+    private long mLastFrameTimeNanos;
+
+    private boolean mFrameStatsCallbackPosted;
+
+    private boolean mMotionFilteringEnabled;
+
+    /** True if the last frame was drawn without filtering because the image was moving */
+    private boolean mFilterReduced;
+
+    private boolean mGestureLayerEnabled;
+
+    /** True while the layer type has been changed to hardware by a gesture */
+    private boolean mGestureLayerPromoted;
+
+    /** The layer type which is restored after the gesture layer */
+    private int mRestingLayerType;
+
+    private final Choreographer.FrameCallback mRestoreLayerCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            restoreLayerType();
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameStatsCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameStatsCallbackPosted = false;
+            final int gesture = getActiveGesture();
+            if (gesture == GESTURE_NONE || mFrameStatsCounter == null) {
+                mLastFrameTimeNanos = 0;
+                return;
+            }
+
+            if (mLastFrameTimeNanos != 0) {
+                mFrameStatsCounter.record(gesture, frameTimeNanos - mLastFrameTimeNanos);
+            }
+            mLastFrameTimeNanos = frameTimeNanos;
+            mFrameStatsCallbackPosted = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    };
+
+    private final Choreographer.FrameCallback mMoveFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flushPendingMove();
+        }
+    };
+
+    /**
+     * Decodes and draws the tiles in tiled mode. It's null when not in tiled mode.
+     */
+    private TileManager mTileManager;
+
+    private int mTileCacheSize = DEFAULT_TILE_CACHE_SIZE;
+
+    /** The limit of the tiles kept on disk. 0 means they are not kept on disk. */
+    private long mDiskTileCacheSize;
+
+    /** True if all tiles of a tiled image are stored on disk in background */
+    private boolean mPretilingEnabled;
+
+    /**
+     * Keeps decoded tiles. It's instantiated when tiled mode starts at first
+     * and shared by the following tiled images to keep its statistics.
+     */
+    private TileCache mTileCache;
+
+    /**
+     * Keeps bitmaps which are no longer displayed to reuse their pixel buffers.
+     * It's instantiated lazily because the parent constructor may set an image.
+     */
+    private BitmapPool mBitmapPool;
+
+    /**
+     * The bitmap which has been decoded by this class and is displayed now.
+     * It's put into {@link #mBitmapPool} when another image is set.
+     */
+    private Bitmap mOwnedBitmap;
+
+    /**
+     * Loads the image which has been decoded by this class.
+     * It's kept while the image is displayed to decode it again at a higher resolution.
+     */
+    private AsyncImageLoader mImageLoader;
+
+    /** The sample size of the displayed image, or 0 if it's not decoded yet */
+    private int mImageSampleSize;
+
+    private int mDecodePolicy = DECODE_POLICY_ADAPTIVE;
+
+    /** The budget of a decoded image in bytes for {@link #DECODE_POLICY_ADAPTIVE} */
+    private long mImageBudget;
+
+    private final AsyncImageLoader.Callback mImageLoaderCallback = new AsyncImageLoader.Callback() {
+        @Override
+        public void onImageLoaded(AsyncImageLoader loader, Bitmap bitmap, int sampleSize) {
+            onAsyncImageLoaded(loader, bitmap, sampleSize);
+        }
+    };
+
     public PinchableImageView(Context context) {
         super(context);
         init(context);
@@ -120,14 +384,57 @@ public class PinchableImageView extends ImageView {
         mTouchSlop = configuration.getScaledTouchSlop();
         mMinimumVelocity = configuration.getScaledMinimumFlingVelocity();
         mMaximumVelocity = configuration.getScaledMaximumFlingVelocity();
+        mChoreographer = Choreographer.getInstance();
+        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        mFrameBudgetNanos = (long) (1000000000L / windowManager.getDefaultDisplay().getRefreshRate());
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mImageBudget = (long) activityManager.getMemoryClass() * 1024 * 1024 / IMAGE_BUDGET_DIVISOR;
+
+        // The parent constructor doesn't call setScaleType() unless the attribute is specified.
+        mEngine.setScaleMode(ScaleMode.valueOf(getScaleType().name()));
+        // Also it doesn't call setImageDrawable() unless the attribute is specified.
+        onImageChanged();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        startImageLoadIfNeeded();
+        if (mTileManager != null && mPretilingEnabled) {
+            mTileManager.startPyramidBuild();
+        }
     }
 
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
 
+        // It's started again when this view is attached
+        if (mImageLoader != null) {
+            mImageLoader.cancel();
+        }
+
         if (mFlingRunnable != null) {
-            removeCallbacks(mFlingRunnable);
+            mFlingRunnable.endFling();
+        }
+
+        mChoreographer.removeFrameCallback(mMoveFrameCallback);
+        mMovePending = false;
+        mChoreographer.removeFrameCallback(mFrameStatsCallback);
+        mFrameStatsCallbackPosted = false;
+        mLastFrameTimeNanos = 0;
+        restoreLayerType();
+
+        if (mTileManager != null) {
+            mTileManager.cancelRequests();
+            mTileManager.stopPyramidBuild();
+            mTileManager.trimDecoders();
+        }
+        if (mTileCache != null) {
+            mTileCache.evictAll();
+        }
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
         }
     }
 
@@ -135,14 +442,13 @@ public class PinchableImageView extends ImageView {
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
 
-        Drawable d = getDrawable();
-        if (d == null) {
+        if (getDrawable() == null) {
             return;
         }
 
         // calc minimum scale
-        float imageWidth = d.getIntrinsicWidth();
-        float imageHeight = d.getIntrinsicHeight();
+        float imageWidth = mImageWidth;
+        float imageHeight = mImageHeight;
         float viewWidth = super.getWidth();
         float viewHeight = super.getHeight();
         float scaleX = viewWidth / imageWidth;
@@ -154,20 +460,437 @@ public class PinchableImageView extends ImageView {
     @Override
     protected boolean setFrame(int l, int t, int r, int b) {
         // When super.setFrame() is called, the matrix in parent is reset.
-        // To prevent that, the matrix values will be saved and restored.
-        getImageMatrix().getValues(mTmpMatrixValues);
+        // To prevent that, the transform will be kept and pushed to the matrix again.
+        ensureTransform();
         boolean changed = super.setFrame(l, t, r, b);
-        getImageMatrix().setValues(mTmpMatrixValues);
+        mEngine.setViewSize(getWidth(), getHeight());
+        applyTransform(true);
+        // The min scale has been decided by onMeasure()
+        startImageLoadIfNeeded();
+        decodeAgainIfNeeded();
         return changed;
     }
 
+    @Override
+    protected void onDraw(Canvas canvas) {
+        applyTransform(false);
+        mFilterReduced = mMotionFilteringEnabled && isMoving();
+        DrawFilter previousFilter = null;
+        if (mFilterReduced) {
+            previousFilter = canvas.getDrawFilter();
+            canvas.setDrawFilter(MOTION_DRAW_FILTER);
+        }
+        super.onDraw(canvas);
+
+        if (mTileManager != null) {
+            drawTiles(canvas);
+        }
+        if (mFilterReduced) {
+            canvas.setDrawFilter(previousFilter);
+        }
+
+        if (mLatencyHistograms != null) {
+            recordFrameLatency();
+        }
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        cancelImageLoad();
+        releaseTiledImage();
+        if (drawable instanceof BitmapDrawable && ((BitmapDrawable) drawable).getBitmap() == mOwnedBitmap) {
+            // The decoded bitmap is set again, so it's not reused for other images any more.
+            mOwnedBitmap = null;
+        }
+        releaseOwnedBitmap();
+        super.setImageDrawable(drawable);
+        onImageChanged();
+    }
+
+    @Override
+    public void setImageResource(int resId) {
+        cancelImageLoad();
+        releaseTiledImage();
+        releaseOwnedBitmap();
+        super.setImageResource(resId);
+        onImageChanged();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Images of {@code content} and {@code file} schemes are decoded
+     * at the sample size decided by {@link #setDecodePolicy(int)}, into
+     * the pixel buffer of the previous image if it has the same size.
+     * </p>
+     * <p>
+     * Because the pixel buffer is reused, the drawable returned by {@link #getDrawable()}
+     * and its bitmap must not be used after the next {@code setImageXXX()} call,
+     * except when they are set to this view again by {@link #setImageDrawable(Drawable)}.
+     * </p>
+     */
+    @Override
+    public void setImageURI(Uri uri) {
+        cancelImageLoad();
+        releaseTiledImage();
+        // The previous bitmap is put into the pool before decoding
+        // so that the new image can be decoded into it.
+        releaseOwnedBitmap();
+
+        String scheme = uri == null ? null : uri.getScheme();
+        AsyncImageLoader loader = null;
+        Bitmap bitmap = null;
+        if (ContentResolver.SCHEME_CONTENT.equals(scheme) || ContentResolver.SCHEME_FILE.equals(scheme)) {
+            loader = AsyncImageLoader.forUri(getContext(), uri, getBitmapPool(), mImageLoaderCallback);
+            if (loader.readBounds()) {
+                final int sampleSize = calcInitialSampleSize(loader);
+                bitmap = loader.decode(sampleSize);
+                mImageSampleSize = sampleSize;
+            }
+        }
+
+        if (bitmap == null) {
+            super.setImageURI(uri);
+        } else {
+            super.setImageDrawable(new SampledBitmapDrawable(getResources(), bitmap,
+                    loader.getIntrinsicWidth(), loader.getIntrinsicHeight()));
+            mOwnedBitmap = bitmap;
+            mImageLoader = loader;
+        }
+        onImageChanged();
+    }
+
+    /**
+     * <p>
+     * Set how the sample size is decided when this class decodes a whole image,
+     * that is, by {@link #setImageURI(Uri)}, {@link #setImageURIAsync(Uri)}
+     * and {@link #setImageResourceAsync(int)}.
+     * The image is never decoded at a higher resolution than the max scale needs.
+     * With {@link #DECODE_POLICY_MEMORY_FIRST}, the image is decoded again in a worker thread
+     * only when the user zooms past the resolution of the decoded image.
+     * </p>
+     * <p>
+     * The default is {@link #DECODE_POLICY_ADAPTIVE}.
+     * It's applied to the images set after this call.
+     * </p>
+     *
+     * @param policy one of {@link #DECODE_POLICY_MEMORY_FIRST}, {@link #DECODE_POLICY_QUALITY_FIRST}
+     *               and {@link #DECODE_POLICY_ADAPTIVE}
+     */
+    public void setDecodePolicy(int policy) {
+        mDecodePolicy = policy;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix matrix) {
+        super.setImageMatrix(matrix);
+        mTransformValid = false;
+    }
+
+    @Override
+    public void setScaleType(ScaleType scaleType) {
+        super.setScaleType(scaleType);
+        // This method can be called by the constructor of the parent class
+        // before the fields of this class are initialized.
+        if (mEngine != null) {
+            mEngine.setScaleMode(ScaleMode.valueOf(scaleType.name()));
+        }
+        mTransformValid = false;
+    }
+
+    /**
+     * <p>
+     * Set an image of a URI without decoding it in UI thread.
+     * </p>
+     * <p>
+     * Only the bounds of the image are read here, so that the view can be laid out
+     * and the min scale can be decided immediately. Nothing is drawn until the image is decoded.
+     * Then the image is decoded in a worker thread at the sample size
+     * decided by {@link #setDecodePolicy(int)}.
+     * If the image can not be decoded as a bitmap, it falls back to {@link #setImageURI(Uri)}.
+     * </p>
+     * <p>
+     * An {@code android.resource} URI of this application is loaded as same as
+     * {@link #setImageResourceAsync(int)}, so that it's scaled by the density of the resource.
+     * Resources of the other applications fall back to {@link #setImageURI(Uri)}.
+     * </p>
+     * <p>
+     * As same as {@link #setImageURI(Uri)}, the decoded drawable must not be used
+     * after the next {@code setImageXXX()} call.
+     * </p>
+     */
+    public void setImageURIAsync(Uri uri) {
+        String scheme = uri == null ? null : uri.getScheme();
+        if (ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme)) {
+            int resId = getResourceId(uri);
+            if (resId != 0) {
+                setImageResourceAsync(resId);
+            } else {
+                setImageURI(uri);
+            }
+            return;
+        }
+        if (!ContentResolver.SCHEME_CONTENT.equals(scheme)
+                && !ContentResolver.SCHEME_FILE.equals(scheme)) {
+            setImageURI(uri);
+            return;
+        }
+
+        AsyncImageLoader loader =
+                AsyncImageLoader.forUri(getContext(), uri, getBitmapPool(), mImageLoaderCallback);
+        if (!loadImageAsync(loader)) {
+            setImageURI(uri);
+        }
+    }
+
+    /**
+     * Resolve an {@code android.resource} URI in the same way as {@code ContentResolver}.
+     *
+     * @return the resource id, or 0 if it's not a resource of this application
+     */
+    private int getResourceId(Uri uri) {
+        String packageName = uri.getAuthority();
+        if (!getContext().getPackageName().equals(packageName)) {
+            return 0;
+        }
+        List<String> path = uri.getPathSegments();
+        if (path.size() == 1) {
+            // android.resource://package/id
+            try {
+                return Integer.parseInt(path.get(0));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        } else if (path.size() == 2) {
+            // android.resource://package/type/name
+            return getResources().getIdentifier(path.get(1), path.get(0), packageName);
+        }
+        return 0;
+    }
+
+    /**
+     * Set an image of a resource without decoding it in UI thread.
+     * If the resource is not a bitmap, it falls back to {@link #setImageResource(int)}.
+     *
+     * @see #setImageURIAsync(Uri)
+     */
+    public void setImageResourceAsync(int resId) {
+        AsyncImageLoader loader =
+                AsyncImageLoader.forResource(getContext(), resId, getBitmapPool(), mImageLoaderCallback);
+        if (!loadImageAsync(loader)) {
+            setImageResource(resId);
+        }
+    }
+
+    /**
+     * <p>
+     * Set an image file to display in tiled mode.
+     * </p>
+     * <p>
+     * In tiled mode, the image is never decoded into one bitmap.
+     * Only the tiles which intersect the view are decoded at a sample size
+     * suitable for the current scale, so it can display images
+     * which are too large to be decoded at once.
+     * Tiled mode is finished when another image is set by {@code setImageXXX()}.
+     * </p>
+     *
+     * @param pathName the path of a JPEG or PNG file
+     * @throws IOException if the file can not be opened or its format is not supported
+     */
+    public void setTiledImage(String pathName) throws IOException {
+        RegionDecoderPool decoders = new RegionDecoderPool(pathName, TileManager.DECODE_THREAD_COUNT);
+        cancelImageLoad();
+        releaseTiledImage();
+        releaseOwnedBitmap();
+        if (mTileCache == null) {
+            mTileCache = new TileCache(mTileCacheSize, getBitmapPool());
+        }
+        DiskTileCache diskCache = null;
+        if (mDiskTileCacheSize > 0) {
+            try {
+                diskCache = DiskTileCache.open(
+                        new File(getContext().getCacheDir(), DISK_TILE_CACHE_DIR), pathName,
+                        decoders.getWidth(), decoders.getHeight(), TileManager.TILE_SIZE, mDiskTileCacheSize);
+            } catch (IOException e) {
+                // The tiles are decoded every time as if it's disabled.
+            }
+        }
+        mTileManager = new TileManager(decoders, mTileCache, diskCache, getBitmapPool(),
+                new TileManager.Callback() {
+                    @Override
+                    public void onTileDecoded() {
+                        invalidate();
+                    }
+                });
+        if (mPretilingEnabled && getWindowToken() != null) {
+            mTileManager.startPyramidBuild();
+        }
+
+        // The drawable has only the size of the image so that
+        // the parent class can layout the image as usual.
+        super.setImageDrawable(new BoundsDrawable(
+                mTileManager.getImageWidth(), mTileManager.getImageHeight()));
+        onImageChanged();
+    }
+
+    /**
+     * Set the limit of the tile cache which is used in tiled mode.
+     * The default is 1/8 of the maximum heap size.
+     *
+     * @param maxBytes the maximum byte count of the decoded tiles kept in the cache
+     */
+    public void setTileCacheSize(int maxBytes) {
+        mTileCacheSize = maxBytes;
+        if (mTileCache != null) {
+            mTileCache.setMaxSize(maxBytes);
+        }
+    }
+
+    /**
+     * <p>
+     * Set the limit of the tile cache on disk which is used in tiled mode.
+     * The default is 0, which means the tiles are not kept on disk.
+     * </p>
+     * <p>
+     * The decoded tiles are written into the cache directory of the app,
+     * and they are read back instead of being decoded when the same file is opened again.
+     * The least recently opened images are deleted to keep the limit.
+     * It takes effect from the next {@link #setTiledImage(String)}.
+     * </p>
+     *
+     * @param maxBytes the maximum byte count of the tiles kept on disk for all images
+     */
+    public void setDiskTileCacheSize(long maxBytes) {
+        mDiskTileCacheSize = maxBytes;
+    }
+
+    /**
+     * <p>
+     * Set whether all tiles of a tiled image are stored in the tile cache on disk in background.
+     * The default is false.
+     * </p>
+     * <p>
+     * It converts the image into a pyramid of tiles once, from the coarsest level,
+     * so that the following opens of the same file are drawn at any scale
+     * without decoding the image. It's useful for huge JPEG files,
+     * whose regions near the bottom take long to decode.
+     * It stops when the limit set by {@link #setDiskTileCacheSize(long)} is reached,
+     * and it's paused while this view is detached from a window.
+     * It takes effect from the next {@link #setTiledImage(String)},
+     * and does nothing unless the tile cache on disk is enabled.
+     * </p>
+     *
+     * @param enabled true to store all tiles
+     */
+    public void setPretilingEnabled(boolean enabled) {
+        mPretilingEnabled = enabled;
+    }
+
+    /**
+     * Get the statistics of the tile cache which is used in tiled mode.
+     * The counts are accumulated over all images displayed in tiled mode by this view.
+     *
+     * @return a snapshot of the statistics
+     */
+    public TileStats getTileStats() {
+        if (mTileCache == null) {
+            return new TileStats(0, 0, 0, 0, 0, mTileCacheSize);
+        }
+        return mTileCache.getStats();
+    }
+
+    /**
+     * <p>
+     * Set whether the bitmaps are drawn without filtering while scrolling or flinging.
+     * </p>
+     * <p>
+     * Filtering a heavily downscaled image is bound by the fill rate on low-end devices,
+     * and its quality can not be seen while the image is moving.
+     * Without filtering, mipmaps are not sampled either.
+     * The full filtering is restored on the first frame after the gesture finishes.
+     * It's applied to every bitmap drawn by this view, including the tiles in tiled mode.
+     * The default is false.
+     * </p>
+     */
+    public void setMotionFilteringEnabled(boolean enabled) {
+        mMotionFilteringEnabled = enabled;
+        invalidate();
+    }
+
+    /**
+     * <p>
+     * Set whether the layer type is changed to {@link #LAYER_TYPE_HARDWARE}
+     * while scrolling, flinging or zooming.
+     * The original layer type is restored a little after the gesture finishes,
+     * so that quick successive flings don't rebuild the layer each time.
+     * </p>
+     * <p>
+     * The layer is redrawn whenever the image matrix changes,
+     * so it pays off only if the view itself is moved or faded during the gestures,
+     * or if the drawing is heavy, e.g. overlays or many tiles.
+     * The default is false.
+     * </p>
+     */
+    public void setGestureLayerEnabled(boolean enabled) {
+        mGestureLayerEnabled = enabled;
+        if (!enabled) {
+            restoreLayerType();
+        } else if (getActiveGesture() != GESTURE_NONE) {
+            promoteLayerType();
+        }
+    }
+
+    /**
+     * Set whether the frame durations during the gestures are counted.
+     * The default is false.
+     *
+     * @see #getFrameStats()
+     */
+    public void setFrameStatsEnabled(boolean enabled) {
+        if (!enabled) {
+            mFrameStatsCounter = null;
+        } else if (mFrameStatsCounter == null) {
+            mFrameStatsCounter = new FrameStatsCounter(GESTURE_COUNT, mFrameBudgetNanos);
+            postFrameStatsCallbackIfNeeded();
+        }
+    }
+
+    /**
+     * Get the frame durations and the janky frames of each gesture
+     * since the counting was enabled or {@link #resetFrameStats()} was called.
+     *
+     * @return a snapshot of the statistics. All counts are 0 if the counting is disabled.
+     * @see #setFrameStatsEnabled(boolean)
+     */
+    public FrameStats getFrameStats() {
+        if (mFrameStatsCounter == null) {
+            return new FrameStatsCounter(GESTURE_COUNT, mFrameBudgetNanos).getStats();
+        }
+        return mFrameStatsCounter.getStats();
+    }
+
+    /**
+     * Clear the counts of {@link #getFrameStats()}.
+     */
+    public void resetFrameStats() {
+        if (mFrameStatsCounter != null) {
+            mFrameStatsCounter.reset();
+        }
+    }
+
     @SuppressWarnings("NullableProblems")
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if (mTraceRecorder != null) {
+            mTraceRecorder.recordEvent(event);
+        }
         initVelocityTrackerIfNotExists();
         mVelocityTracker.addMovement(event);
 
         final int actionMasked = event.getActionMasked();
+        if (actionMasked != MotionEvent.ACTION_MOVE) {
+            flushPendingMove();
+        }
 
         switch (actionMasked) {
             case MotionEvent.ACTION_DOWN: {
@@ -179,7 +902,7 @@ public class PinchableImageView extends ImageView {
                 break;
             }
             case MotionEvent.ACTION_UP: {
-                onTouchUp();
+                onTouchUp(event);
                 break;
             }
             case MotionEvent.ACTION_CANCEL: {
@@ -201,42 +924,192 @@ public class PinchableImageView extends ImageView {
     }
 
     /**
-     * set max scale
-     *
-     * @param scale if it's smaller than min scale, this method do nothing.
+     * <p>
+     * Set whether move events are coalesced per frame.
+     * </p>
+     * <p>
+     * If it's enabled, {@link #onTouchEvent(MotionEvent)} only records the latest pointer state
+     * for {@link MotionEvent#ACTION_MOVE}, and the transform is resolved once per frame.
+     * It reduces the work on devices whose touch panels report at a higher rate than the display.
+     * The default is false.
+     * </p>
      */
-    public void setMaxScale(float scale) {
-        if (mMinScale > scale) {
-            return;
+    public void setMoveCoalescingEnabled(boolean enabled) {
+        if (!enabled) {
+            flushPendingMove();
         }
-        mMaxScale = scale;
+        mMoveCoalescingEnabled = enabled;
     }
 
     /**
-     * set min scale
+     * <p>
+     * Set the number of records which the gesture trace keeps.
+     * </p>
+     * <p>
+     * While it's enabled, the touch events, the touch mode transitions and the transforms
+     * are recorded into a ring buffer which is allocated here,
+     * so that a stuttering gesture can be dumped by {@link #dumpGestureTrace(OutputStream)}
+     * and replayed later. Recording doesn't allocate objects.
+     * The default is 0.
+     * </p>
      *
-     * @param scale if it's larger than max scale, this method do nothing.
+     * @param capacity the maximum number of records, or 0 to disable recording
      */
-    public void setMinScale(float scale) {
-        if (mMaxScale < scale) {
-            return;
+    public void setGestureTraceCapacity(int capacity) {
+        if (capacity <= 0) {
+            mTraceRecorder = null;
+        } else if (mTraceRecorder == null || mTraceRecorder.getCapacity() != capacity) {
+            mTraceRecorder = new GestureTraceRecorder(capacity);
         }
-        mMinScale = scale;
     }
 
-    private void onTouchDown(MotionEvent event) {
-        if (mTouchMode == TouchMode.TOUCH_MODE_FLING) {
-            mTouchMode = TouchMode.TOUCH_MODE_SCROLL;
-            mFlingRunnable.flywheelTouch();
-        } else {
-            mTouchMode = TouchMode.TOUCH_MODE_DOWN;
+    /**
+     * Write the gesture trace in a compact binary format, from the oldest record.
+     * It does nothing if the trace is disabled. The stream is not closed.
+     *
+     * @throws IOException if it fails to write
+     * @see #setGestureTraceCapacity(int)
+     */
+    public void dumpGestureTrace(OutputStream out) throws IOException {
+        if (mTraceRecorder != null) {
+            mTraceRecorder.dump(out);
         }
-
-        mLast.set(event.getX(), event.getY());
     }
 
-    private void onTouchMove(MotionEvent event) {
-        int pointerIndex = event.findPointerIndex(mActivePointerId);
+    /**
+     * Register a callback to be invoked when a gesture has finished
+     * and its frame latencies are available.
+     *
+     * @param listener the callback, or null to stop measuring latencies
+     */
+    public void setOnFrameLatencyListener(OnFrameLatencyListener listener) {
+        mOnFrameLatencyListener = listener;
+        if (listener == null) {
+            mLatencyHistograms = null;
+        } else if (mLatencyHistograms == null) {
+            mLatencyHistograms = new LatencyHistogram[GESTURE_COUNT];
+            for (int i = 0; i < GESTURE_COUNT; i++) {
+                mLatencyHistograms[i] = new LatencyHistogram();
+            }
+        }
+        mLatencyGesture = GESTURE_NONE;
+        mFinishedGestures = 0;
+    }
+
+    /**
+     * set max scale
+     *
+     * @param scale if it's smaller than min scale, this method do nothing.
+     */
+    public void setMaxScale(float scale) {
+        mEngine.setMaxScale(scale);
+    }
+
+    /**
+     * set min scale
+     *
+     * @param scale if it's larger than max scale, this method do nothing.
+     */
+    public void setMinScale(float scale) {
+        mEngine.setMinScale(scale);
+    }
+
+    private void setTouchMode(TouchMode touchMode) {
+        if (mTraceRecorder != null && mTouchMode != touchMode) {
+            mTraceRecorder.recordTouchMode(System.nanoTime(), touchMode.ordinal());
+        }
+        mTouchMode = touchMode;
+        postFrameStatsCallbackIfNeeded();
+
+        if (mFilterReduced && !isMoving()) {
+            // Draw the next frame with filtering
+            invalidate();
+        }
+        if (mTileManager != null && !isMoving()) {
+            mTileManager.setPrefetchOffset(0, 0);
+        }
+
+        if (mGestureLayerEnabled) {
+            if (getActiveGesture() != GESTURE_NONE) {
+                promoteLayerType();
+            } else if (touchMode == TouchMode.TOUCH_MODE_REST && mGestureLayerPromoted) {
+                mChoreographer.removeFrameCallback(mRestoreLayerCallback);
+                mChoreographer.postFrameCallbackDelayed(mRestoreLayerCallback, GESTURE_LAYER_HYSTERESIS);
+            }
+        }
+    }
+
+    private void promoteLayerType() {
+        mChoreographer.removeFrameCallback(mRestoreLayerCallback);
+        if (mGestureLayerPromoted) {
+            return;
+        }
+        mRestingLayerType = getLayerType();
+        if (mRestingLayerType != LAYER_TYPE_HARDWARE) {
+            setLayerType(LAYER_TYPE_HARDWARE, null);
+        }
+        mGestureLayerPromoted = true;
+    }
+
+    private void restoreLayerType() {
+        mChoreographer.removeFrameCallback(mRestoreLayerCallback);
+        if (!mGestureLayerPromoted) {
+            return;
+        }
+        mGestureLayerPromoted = false;
+        if (getLayerType() == LAYER_TYPE_HARDWARE && mRestingLayerType != LAYER_TYPE_HARDWARE) {
+            setLayerType(mRestingLayerType, null);
+        }
+    }
+
+    /**
+     * @return true if the image is moving by scrolling or flinging
+     */
+    private boolean isMoving() {
+        return mTouchMode == TouchMode.TOUCH_MODE_SCROLL || mTouchMode == TouchMode.TOUCH_MODE_FLING;
+    }
+
+    /**
+     * @return the gesture of the current touch mode, or {@link #GESTURE_NONE}
+     */
+    private int getActiveGesture() {
+        switch (mTouchMode) {
+            case TOUCH_MODE_SCROLL:
+                return GESTURE_SCROLL;
+            case TOUCH_MODE_FLING:
+                return GESTURE_FLING;
+            case TOUCH_MODE_MULTI:
+                return GESTURE_ZOOM;
+            default:
+                return GESTURE_NONE;
+        }
+    }
+
+    /**
+     * Start watching the frames if a gesture has started.
+     * The callback keeps posting itself until the gesture finishes.
+     */
+    private void postFrameStatsCallbackIfNeeded() {
+        if (mFrameStatsCounter == null || mFrameStatsCallbackPosted || getActiveGesture() == GESTURE_NONE) {
+            return;
+        }
+        mFrameStatsCallbackPosted = true;
+        mChoreographer.postFrameCallback(mFrameStatsCallback);
+    }
+
+    private void onTouchDown(MotionEvent event) {
+        if (mTouchMode == TouchMode.TOUCH_MODE_FLING) {
+            setTouchMode(TouchMode.TOUCH_MODE_SCROLL);
+            mFlingRunnable.flywheelTouch();
+        } else {
+            setTouchMode(TouchMode.TOUCH_MODE_DOWN);
+        }
+
+        mLast.set(event.getX(), event.getY());
+    }
+
+    private void onTouchMove(MotionEvent event) {
+        int pointerIndex = event.findPointerIndex(mActivePointerId);
         if (pointerIndex == -1) {
             pointerIndex = 0;
             mActivePointerId = event.getPointerId(pointerIndex);
@@ -245,36 +1118,74 @@ public class PinchableImageView extends ImageView {
         final float x = event.getX(pointerIndex);
         final float y = event.getY(pointerIndex);
 
+        if (mTouchMode == TouchMode.TOUCH_MODE_DOWN || mTouchMode == TouchMode.TOUCH_MODE_TAP) {
+            // The batched samples are checked too, because the pointer may have crossed
+            // the touch slop and come back within it before the latest sample.
+            // Only the touch mode is changed here. The image is scrolled to the latest sample
+            // below, as same as the other moves, so that it's resolved once per frame.
+            final int historySize = event.getHistorySize();
+            for (int h = 0; h < historySize; h++) {
+                if (checkTouchSlop(event.getHistoricalX(pointerIndex, h),
+                        event.getHistoricalY(pointerIndex, h))) {
+                    break;
+                }
+            }
+        }
+
+        final long eventTimeNanos = event.getEventTime() * 1000000L;
+        if (mMoveCoalescingEnabled) {
+            // Only record the latest state. It's handled once per frame.
+            mPendingMove.set(x, y);
+            mPendingMoveFirst.set(event.getX(), event.getY());
+            if (!mMovePending) {
+                mMovePending = true;
+                mPendingMoveTimeNanos = eventTimeNanos;
+                mChoreographer.postFrameCallback(mMoveFrameCallback);
+            }
+            return;
+        }
+
+        mMoveTimeNanos = eventTimeNanos;
+        onTouchMove(x, y, event.getX(), event.getY());
+    }
+
+    /**
+     * Flush the move which has been recorded but not handled yet,
+     * so that events are handled in order.
+     */
+    private void flushPendingMove() {
+        if (!mMovePending) {
+            return;
+        }
+        mMovePending = false;
+        mChoreographer.removeFrameCallback(mMoveFrameCallback);
+        mMoveTimeNanos = mPendingMoveTimeNanos;
+        onTouchMove(mPendingMove.x, mPendingMove.y, mPendingMoveFirst.x, mPendingMoveFirst.y);
+    }
+
+    /**
+     * @param x the x of the active pointer
+     * @param y the y of the active pointer
+     * @param firstX the x of the first pointer, which is used as the other end of the pinch
+     * @param firstY the y of the first pointer, which is used as the other end of the pinch
+     */
+    private void onTouchMove(float x, float y, float firstX, float firstY) {
         switch (mTouchMode) {
             case TOUCH_MODE_DOWN:
             case TOUCH_MODE_TAP: {
-                startScrollIfNeeded((int) x, (int) y);
+                startScrollIfNeeded(x, y);
                 break;
             }
             case TOUCH_MODE_SCROLL: {
-                scrollIfNeeded((int) x, (int) y);
+                scrollIfNeeded(x, y);
                 break;
             }
             case TOUCH_MODE_MULTI: {
-                float baseScale = mZoomBasisImageMatrixValues[Matrix.MSCALE_X];
-                float newScale = baseScale * hypot(event.getX() - x, event.getY() - y) / mZoomBasisSpan;
-
-                if (!Float.isNaN(newScale)) {
-                    if (newScale < mMinScale) {
-                        newScale = mMinScale;
-                    }
-
-                    if (newScale > mMaxScale) {
-                        newScale = mMaxScale;
-                    }
-
-                    Matrix imageMatrix = getImageMatrix();
-                    imageMatrix.setValues(mZoomBasisImageMatrixValues);
-                    imageMatrix.postScale(newScale / baseScale, newScale / baseScale,
-                            mZoomBasisMidPoint.x, mZoomBasisMidPoint.y);
-
-                    checkMatrix(imageMatrix);
+                if (mEngine.pinch(mZoomBasisTransform, mZoomBasisSpan, hypot(firstX - x, firstY - y),
+                        mZoomBasisMidPoint.x, mZoomBasisMidPoint.y)) {
+                    updateTileViewport();
                     invalidate();
+                    onTransformChanged(GESTURE_ZOOM, mMoveTimeNanos);
                 }
                 break;
             }
@@ -283,14 +1194,16 @@ public class PinchableImageView extends ImageView {
         }
     }
 
-    private void onTouchUp() {
+    private void onTouchUp(MotionEvent event) {
         switch (mTouchMode) {
             case TOUCH_MODE_DOWN:
             case TOUCH_MODE_TAP:
             case TOUCH_MODE_DONE_WAITING:
-                mTouchMode = TouchMode.TOUCH_MODE_REST;
+                setTouchMode(TouchMode.TOUCH_MODE_REST);
                 break;
             case TOUCH_MODE_SCROLL:
+                onGestureFinished(GESTURE_SCROLL);
+
                 final VelocityTracker velocityTracker = mVelocityTracker;
                 velocityTracker.computeCurrentVelocity(1000, mMaximumVelocity);
 
@@ -304,9 +1217,10 @@ public class PinchableImageView extends ImageView {
                         mFlingRunnable = new FlingRunnable();
                     }
 
-                    mFlingRunnable.start((int) (-initialVelocityX), (int) (-initialVelocityY));
+                    mFlingRunnable.start(initialVelocityX, initialVelocityY,
+                            event.getEventTime() * 1000000L);
                 } else {
-                    mTouchMode = TouchMode.TOUCH_MODE_REST;
+                    setTouchMode(TouchMode.TOUCH_MODE_REST);
                     if (mFlingRunnable != null) {
                         mFlingRunnable.endFling();
                     }
@@ -324,33 +1238,51 @@ public class PinchableImageView extends ImageView {
     }
 
     private void onTouchCancel() {
-        mTouchMode = TouchMode.TOUCH_MODE_REST;
+        if (mTouchMode == TouchMode.TOUCH_MODE_MULTI) {
+            onPinchFinished();
+        } else if (mTouchMode == TouchMode.TOUCH_MODE_SCROLL) {
+            onGestureFinished(GESTURE_SCROLL);
+        }
+        setTouchMode(TouchMode.TOUCH_MODE_REST);
         setPressed(false);
         recycleVelocityTracker();
 
         mActivePointerId = INVALID_POINTER;
     }
 
-    private boolean startScrollIfNeeded(int x, int y) {
+    private boolean startScrollIfNeeded(float x, float y) {
+        if (checkTouchSlop(x, y)) {
+            scrollIfNeeded(x, y);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Start scrolling without moving the image if the pointer has crossed the touch slop.
+     * {@link #mLast} is kept, so that the next scroll includes the distance to the slop.
+     *
+     * @return true if the touch mode has been changed to {@link TouchMode#TOUCH_MODE_SCROLL}
+     */
+    private boolean checkTouchSlop(float x, float y) {
         float deltaX = x - mLast.x;
         float deltaY = y - mLast.y;
         float distance = hypot(deltaX, deltaY);
 
         if (distance > mTouchSlop) {
-            mTouchMode = TouchMode.TOUCH_MODE_SCROLL;
+            setTouchMode(TouchMode.TOUCH_MODE_SCROLL);
             setPressed(false);
 
             ViewParent parent = getParent();
             if (parent != null) {
                 parent.requestDisallowInterceptTouchEvent(true);
             }
-            scrollIfNeeded(x, y);
             return true;
         }
         return false;
     }
 
-    private void scrollIfNeeded(int x, int y) {
+    private void scrollIfNeeded(float x, float y) {
         float incrementalDeltaX = x - mLast.x;
         float incrementalDeltaY = y - mLast.y;
 
@@ -363,6 +1295,9 @@ public class PinchableImageView extends ImageView {
                         if (parent != null) {
                             parent.requestDisallowInterceptTouchEvent(false);
                         }
+                    } else {
+                        onTransformChanged(GESTURE_SCROLL, mMoveTimeNanos);
+                        updateScrollPrefetch();
                     }
                 }
 
@@ -371,6 +1306,19 @@ public class PinchableImageView extends ImageView {
         }
     }
 
+    /**
+     * Prefetch the tiles where the image will be moved by the current velocity.
+     */
+    private void updateScrollPrefetch() {
+        if (mTileManager == null || mVelocityTracker == null) {
+            return;
+        }
+        mVelocityTracker.computeCurrentVelocity(1000, mMaximumVelocity);
+        mTileManager.setPrefetchOffset(
+                mVelocityTracker.getXVelocity(mActivePointerId) * PREFETCH_LOOKAHEAD,
+                mVelocityTracker.getYVelocity(mActivePointerId) * PREFETCH_LOOKAHEAD);
+    }
+
     /**
      * Track a motion scroll
      *
@@ -381,83 +1329,63 @@ public class PinchableImageView extends ImageView {
      * @return true if we're already at the beginning/end of the view and have nothing to do.
      */
     private boolean trackMotionScroll(float deltaX, float deltaY) {
-        Matrix imageMatrix = getImageMatrix();
-
-        imageMatrix.getValues(mTmpMatrixValues);
-        int currentX = (int) mTmpMatrixValues[Matrix.MTRANS_X];
-        int currentY = (int) mTmpMatrixValues[Matrix.MTRANS_Y];
+        ensureTransform();
+        if (mEngine.translate(deltaX, deltaY)) {
+            return true;
+        }
 
-        imageMatrix.postTranslate(deltaX, deltaY);
+        updateTileViewport();
+        invalidate();
+        return false;
+    }
 
-        checkMatrix(imageMatrix);
+    /**
+     * Load {@link #mTransform} from the image matrix if it may have been changed by the parent class.
+     */
+    private void ensureTransform() {
+        if (!mTransformValid) {
+            getImageMatrix().getValues(mTmpMatrixValues);
+            mTransform.setValues(mTmpMatrixValues);
+            mTransformValid = true;
+        }
+    }
 
-        imageMatrix.getValues(mTmpMatrixValues);
-        int newX = (int) mTmpMatrixValues[Matrix.MTRANS_X];
-        int newY = (int) mTmpMatrixValues[Matrix.MTRANS_Y];
+    /**
+     * Push {@link #mTransform} to the image matrix.
+     *
+     * @param force true to push it even if it's not changed
+     */
+    private void applyTransform(boolean force) {
+        if (!mTransformValid || !(force || mTransform.isDirty())) {
+            return;
+        }
+        mTransform.getValues(mTmpMatrixValues);
+        getImageMatrix().setValues(mTmpMatrixValues);
 
-        if (newX != currentX || newY != currentY) {
-            invalidate();
-            return false;
-        } else {
-            return true;
+        if (mTraceRecorder != null) {
+            mTraceRecorder.recordTransform(System.nanoTime(), mTransform.getScaleX(), mTransform.getScaleY(),
+                    mTransform.getTranslateX(), mTransform.getTranslateY());
         }
     }
 
-    private void checkMatrix(Matrix imageMatrix) {
+    /**
+     * Cache the properties of the new drawable.
+     * It can be called by the constructor of the parent class.
+     */
+    private void onImageChanged() {
         Drawable d = getDrawable();
         if (d == null) {
-            return;
+            mImageWidth = -1;
+            mImageHeight = -1;
+        } else {
+            mImageWidth = d.getIntrinsicWidth();
+            mImageHeight = d.getIntrinsicHeight();
         }
-
-        imageMatrix.getValues(mTmpMatrixValues);
-        int imageWidth = d.getIntrinsicWidth();
-        imageWidth *= mTmpMatrixValues[Matrix.MSCALE_X];
-        int imageHeight = d.getIntrinsicHeight();
-        imageHeight *= mTmpMatrixValues[Matrix.MSCALE_Y];
-
-        switch (getScaleType()) {
-            case FIT_CENTER:
-            case CENTER:
-            case CENTER_CROP:
-            case CENTER_INSIDE: {
-                if (imageWidth < getWidth()) {
-                    mTmpMatrixValues[Matrix.MTRANS_X] = (getWidth() - imageWidth) / 2.0f;
-                } else {
-                    if (mTmpMatrixValues[Matrix.MTRANS_X] > 0) {
-                        mTmpMatrixValues[Matrix.MTRANS_X] = 0;
-                    } else if (mTmpMatrixValues[Matrix.MTRANS_X] < getWidth() - imageWidth) {
-                        mTmpMatrixValues[Matrix.MTRANS_X] = getWidth() - imageWidth;
-                    }
-                }
-
-                if (imageHeight < getHeight()) {
-                    mTmpMatrixValues[Matrix.MTRANS_Y] = (getHeight() - imageHeight) / 2.0f;
-                } else {
-                    if (mTmpMatrixValues[Matrix.MTRANS_Y] > 0) {
-                        mTmpMatrixValues[Matrix.MTRANS_Y] = 0;
-                    } else if (mTmpMatrixValues[Matrix.MTRANS_Y] < getHeight() - imageHeight) {
-                        mTmpMatrixValues[Matrix.MTRANS_Y] = getHeight() - imageHeight;
-                    }
-                }
-                break;
-            }
-            case FIT_START: {
-                mTmpMatrixValues[Matrix.MTRANS_X] = 0;
-                mTmpMatrixValues[Matrix.MTRANS_Y] = 0;
-                break;
-            }
-            case FIT_END: {
-                mTmpMatrixValues[Matrix.MTRANS_X] = getWidth() - imageWidth;
-                mTmpMatrixValues[Matrix.MTRANS_Y] = getHeight() - imageHeight;
-                break;
-            }
-            case FIT_XY:
-            default:
-                // Do nothing
-                break;
+        // It's called again by init() if the engine is not initialized yet.
+        if (mEngine != null) {
+            mEngine.setImageSize(mImageWidth, mImageHeight);
         }
-
-        imageMatrix.setValues(mTmpMatrixValues);
+        mTransformValid = false;
     }
 
     private void onTouchPointerDown(MotionEvent event) {
@@ -471,14 +1399,288 @@ public class PinchableImageView extends ImageView {
         mLast.set(pointerX, pointerY);
 
         mZoomBasisSpan = hypot(x - pointerX, y - pointerY);
-        getImageMatrix().getValues(mZoomBasisImageMatrixValues);
+        ensureTransform();
+        mZoomBasisTransform.set(mTransform);
 
         mZoomBasisMidPoint.set((x + pointerX) / 2.0f, (y + pointerY) / 2.0f);
-        mTouchMode = TouchMode.TOUCH_MODE_MULTI;
+        setTouchMode(TouchMode.TOUCH_MODE_MULTI);
+        if (mTileManager != null) {
+            mTileManager.setPinching(true);
+        }
     }
 
     private void onTouchPointerUp() {
-        mTouchMode = TouchMode.TOUCH_MODE_REST;
+        if (mTouchMode == TouchMode.TOUCH_MODE_MULTI) {
+            onPinchFinished();
+        }
+        setTouchMode(TouchMode.TOUCH_MODE_REST);
+    }
+
+    private void onPinchFinished() {
+        onGestureFinished(GESTURE_ZOOM);
+        decodeAgainIfNeeded();
+        if (mTileManager != null) {
+            // Request the tiles suitable for the settled scale
+            mTileManager.setPinching(false);
+            invalidate();
+        }
+    }
+
+    private void drawTiles(Canvas canvas) {
+        updateTileViewport();
+
+        int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        mTileManager.draw(canvas, mTransform);
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * Tell the current viewport to the tile manager
+     * so that it can cancel the requests of the tiles which are no longer visible.
+     */
+    private void updateTileViewport() {
+        if (mTileManager == null) {
+            return;
+        }
+
+        ensureTransform();
+        mTileManager.setViewport(mTransform,
+                getWidth() - getPaddingLeft() - getPaddingRight(),
+                getHeight() - getPaddingTop() - getPaddingBottom());
+    }
+
+    /**
+     * Set a placeholder of the image size and start loading.
+     *
+     * @return false if the bounds of the image can not be read
+     */
+    private boolean loadImageAsync(AsyncImageLoader loader) {
+        if (!loader.readBounds()) {
+            return false;
+        }
+
+        cancelImageLoad();
+        releaseTiledImage();
+        releaseOwnedBitmap();
+        super.setImageDrawable(new BoundsDrawable(loader.getIntrinsicWidth(), loader.getIntrinsicHeight()));
+        onImageChanged();
+
+        mImageLoader = loader;
+        mImageSampleSize = 0;
+        startImageLoadIfNeeded();
+        return true;
+    }
+
+    /**
+     * Start loading if the image has not been decoded yet and the view has been laid out.
+     */
+    private void startImageLoadIfNeeded() {
+        if (mImageLoader == null || mImageSampleSize != 0 || mImageLoader.isStarted()
+                || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        mImageLoader.start(calcInitialSampleSize(mImageLoader));
+    }
+
+    /**
+     * Decode the image again in a worker thread
+     * if the user has zoomed past the resolution of the decoded image.
+     */
+    private void decodeAgainIfNeeded() {
+        if (mImageLoader == null || mImageSampleSize == 0 || mImageLoader.isStarted()) {
+            return;
+        }
+
+        ensureTransform();
+        final int sampleSize = Math.max(calcMinSampleSize(mImageLoader),
+                TileManager.calcSampleSize(mTransform.getScaleX() * mImageLoader.getDensityScale()));
+        if (sampleSize < mImageSampleSize) {
+            mImageLoader.start(sampleSize);
+        }
+    }
+
+    /**
+     * @return the sample size to decode the image at first
+     */
+    private int calcInitialSampleSize(AsyncImageLoader loader) {
+        final int minSampleSize = calcMinSampleSize(loader);
+        if (mDecodePolicy != DECODE_POLICY_MEMORY_FIRST) {
+            return minSampleSize;
+        }
+
+        // The scale which fits the image to the view. The display is used until the view is laid out.
+        int viewWidth = getWidth();
+        int viewHeight = getHeight();
+        if (viewWidth == 0 || viewHeight == 0) {
+            viewWidth = getResources().getDisplayMetrics().widthPixels;
+            viewHeight = getResources().getDisplayMetrics().heightPixels;
+        }
+        final float fitScale = Math.min((float) viewWidth / loader.getIntrinsicWidth(),
+                (float) viewHeight / loader.getIntrinsicHeight());
+        return Math.max(minSampleSize, TileManager.calcSampleSize(fitScale * loader.getDensityScale()));
+    }
+
+    /**
+     * @return the smallest sample size which the decode policy allows
+     */
+    private int calcMinSampleSize(AsyncImageLoader loader) {
+        // The scale which maps one pixel of the encoded image to the screen at the max scale
+        final float maxScale = Math.max(mEngine.getMaxScale(), mEngine.getMinScale())
+                * loader.getDensityScale();
+        int sampleSize = TileManager.calcSampleSize(maxScale);
+        if (mDecodePolicy == DECODE_POLICY_ADAPTIVE) {
+            while ((long) TileManager.divideRoundUp(loader.getWidth(), sampleSize)
+                    * TileManager.divideRoundUp(loader.getHeight(), sampleSize)
+                    * BYTES_PER_PIXEL > mImageBudget) {
+                sampleSize *= 2;
+            }
+        }
+        return sampleSize;
+    }
+
+    private void cancelImageLoad() {
+        // This method can be called by the constructor of the parent class
+        // before the fields of this class are initialized.
+        if (mImageLoader != null) {
+            mImageLoader.cancel();
+            mImageLoader = null;
+        }
+        mImageSampleSize = 0;
+    }
+
+    private void onAsyncImageLoaded(AsyncImageLoader loader, Bitmap bitmap, int sampleSize) {
+        if (loader != mImageLoader) {
+            if (bitmap != null) {
+                getBitmapPool().put(bitmap);
+            }
+            return;
+        }
+        if (bitmap == null) {
+            onAsyncImageLoadFailed(loader);
+            return;
+        }
+
+        // The placeholder or the previous bitmap has the same intrinsic size,
+        // so the transform is kept as same as setFrame().
+        ensureTransform();
+        final Bitmap previous = mOwnedBitmap;
+        super.setImageDrawable(new SampledBitmapDrawable(getResources(), bitmap,
+                loader.getIntrinsicWidth(), loader.getIntrinsicHeight()));
+        mOwnedBitmap = bitmap;
+        mImageSampleSize = sampleSize;
+        if (previous != null) {
+            getBitmapPool().put(previous);
+        }
+        applyTransform(true);
+    }
+
+    /**
+     * If the placeholder is displayed, fall back to the parent class as same as
+     * {@link #setImageURI(Uri)} does for an image which can't be decoded.
+     * Otherwise the displayed image is kept, and it's never decoded again.
+     */
+    private void onAsyncImageLoadFailed(AsyncImageLoader loader) {
+        if (mImageSampleSize != 0) {
+            mImageLoader = null;
+            return;
+        }
+
+        cancelImageLoad();
+        if (loader.getUri() != null) {
+            super.setImageURI(loader.getUri());
+        } else {
+            super.setImageResource(loader.getResId());
+        }
+        onImageChanged();
+    }
+
+    private void releaseTiledImage() {
+        // This method can be called by the constructor of the parent class
+        // before the fields of this class are initialized.
+        if (mTileManager != null) {
+            mTileManager.recycle();
+            mTileManager = null;
+            mTileCache.evictAll();
+        }
+    }
+
+    /**
+     * Called when a gesture has changed the transform and a new frame is needed.
+     *
+     * @param gesture the gesture which has changed the transform
+     * @param startTimeNanos the time of the event or the frame which has caused the change
+     */
+    private void onTransformChanged(int gesture, long startTimeNanos) {
+        if (mLatencyHistograms == null) {
+            return;
+        }
+        // The latency is measured from the earliest change which has not been drawn yet.
+        if (mLatencyGesture == GESTURE_NONE) {
+            mLatencyGesture = gesture;
+            mLatencyStartNanos = startTimeNanos;
+        }
+    }
+
+    private void onGestureFinished(int gesture) {
+        if (mLatencyHistograms == null) {
+            return;
+        }
+        // The histogram is delivered after the last frame of the gesture is drawn.
+        mFinishedGestures |= 1 << gesture;
+        invalidate();
+    }
+
+    private void recordFrameLatency() {
+        if (mLatencyGesture != GESTURE_NONE) {
+            mLatencyHistograms[mLatencyGesture].record(System.nanoTime() - mLatencyStartNanos);
+            mLatencyGesture = GESTURE_NONE;
+        }
+
+        if (mFinishedGestures != 0) {
+            for (int gesture = 0; gesture < GESTURE_COUNT; gesture++) {
+                if ((mFinishedGestures & (1 << gesture)) == 0) {
+                    continue;
+                }
+                LatencyHistogram histogram = mLatencyHistograms[gesture];
+                if (histogram.getTotalCount() > 0) {
+                    mOnFrameLatencyListener.onFrameLatency(gesture, histogram);
+                    histogram.reset();
+                }
+            }
+            mFinishedGestures = 0;
+        }
+    }
+
+    private BitmapPool getBitmapPool() {
+        if (mBitmapPool == null) {
+            mBitmapPool = new BitmapPool(DEFAULT_BITMAP_POOL_SIZE);
+        }
+        return mBitmapPool;
+    }
+
+    private void releaseOwnedBitmap() {
+        if (mOwnedBitmap != null) {
+            getBitmapPool().put(mOwnedBitmap);
+            mOwnedBitmap = null;
+        }
+    }
+
+    /**
+     * @return the engine which clamps the transform. It's exposed for the replay harness.
+     */
+    ViewportEngine getViewportEngine() {
+        return mEngine;
+    }
+
+    /**
+     * It's called while the fields of this class are initialized,
+     * and overridden by the replay harness to count the clamps.
+     *
+     * @return a new engine for this view
+     */
+    ViewportEngine createViewportEngine() {
+        return new ViewportEngine();
     }
 
     private static float hypot(float x, float y) {
@@ -508,20 +1710,199 @@ public class PinchableImageView extends ImageView {
         mVelocityScale = scale;
     }
 
-    private class FlingRunnable implements Runnable {
+    /**
+     * A drawable which has only an intrinsic size and draws nothing.
+     * It's used in tiled mode to layout the image by the parent class.
+     */
+    private static class BoundsDrawable extends Drawable {
+        private final int mWidth;
+
+        private final int mHeight;
+
+        public BoundsDrawable(int width, int height) {
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            // Do nothing. The tiles are drawn by PinchableImageView.
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            // Do nothing
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter colorFilter) {
+            // Do nothing
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+
+    /**
+     * <p>
+     * A bitmap drawable which keeps the intrinsic size of the original image
+     * even if the bitmap has been decoded with a sample size.
+     * </p>
+     * <p>
+     * When the image is zoomed so that most of it is out of the view,
+     * only the visible part of the bitmap is drawn instead of relying on clipping.
+     * The visible part is the clip of the canvas, which has been transformed by the image matrix.
+     * A tinted or mirrored image is always drawn by {@link BitmapDrawable#draw(Canvas)},
+     * because the tint filter and the mirroring are private to it.
+     * </p>
+     */
+    private static class SampledBitmapDrawable extends BitmapDrawable {
+        /** The part of the bitmap is drawn only if the visible area is smaller than this ratio */
+        private static final float PARTIAL_DRAW_AREA_RATIO = 0.5f;
+
+        private final int mWidth;
+
+        private final int mHeight;
+
+        /** The visible area in drawable coordinates */
+        private final Rect mVisibleRect = new Rect();
+
+        private final Rect mSrcRect = new Rect();
+
+        private final RectF mDstRect = new RectF();
+
+        private boolean mTinted;
+
+        public SampledBitmapDrawable(Resources res, Bitmap bitmap, int width, int height) {
+            super(res, bitmap);
+            mWidth = width;
+            mHeight = height;
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override
+        public void setTintList(ColorStateList tint) {
+            super.setTintList(tint);
+            mTinted = tint != null;
+        }
 
         /**
-         * Tracks the decay of a fling scroll
+         * @return true if {@link BitmapDrawable#draw(Canvas)} may mirror the bitmap
+         */
+        private boolean mayBeMirrored() {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || !isAutoMirrored()) {
+                return false;
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                return getLayoutDirection() == LayoutDirection.RTL;
+            }
+            // The layout direction of drawables is not public before M
+            return true;
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            final Bitmap bitmap = getBitmap();
+            final Rect bounds = getBounds();
+            if (bitmap == null || bounds.isEmpty()) {
+                return;
+            }
+            if (!canvas.getClipBounds(mVisibleRect) || !mVisibleRect.intersect(bounds)) {
+                // Nothing is visible
+                return;
+            }
+            if (mTinted || mayBeMirrored() || (long) mVisibleRect.width() * mVisibleRect.height()
+                    >= (long) bounds.width() * bounds.height() * PARTIAL_DRAW_AREA_RATIO) {
+                super.draw(canvas);
+                return;
+            }
+
+            // Rounded out to whole pixels of the bitmap, and mapped back so that they are aligned
+            final float scaleX = (float) bitmap.getWidth() / bounds.width();
+            final float scaleY = (float) bitmap.getHeight() / bounds.height();
+            mSrcRect.set((int) Math.floor((mVisibleRect.left - bounds.left) * scaleX),
+                    (int) Math.floor((mVisibleRect.top - bounds.top) * scaleY),
+                    Math.min(bitmap.getWidth(), (int) Math.ceil((mVisibleRect.right - bounds.left) * scaleX)),
+                    Math.min(bitmap.getHeight(), (int) Math.ceil((mVisibleRect.bottom - bounds.top) * scaleY)));
+            mDstRect.set(bounds.left + mSrcRect.left / scaleX,
+                    bounds.top + mSrcRect.top / scaleY,
+                    bounds.left + mSrcRect.right / scaleX,
+                    bounds.top + mSrcRect.bottom / scaleY);
+            canvas.drawBitmap(bitmap, mSrcRect, mDstRect, getPaint());
+        }
+    }
+
+    /**
+     * Animates a fling by the frame time of {@link Choreographer}.
+     * The distance and the duration are calculated by {@link Scroller}
+     * and the translation of each frame is interpolated with them.
+     */
+    private class FlingRunnable implements Choreographer.FrameCallback {
+
+        /**
+         * Calculates the distance and the duration of a fling
          */
         private Scroller mScroller;
 
-        private Point mLastFling = new Point();
+        /** The translation bounds while flinging */
+        private final TranslationBounds mBounds = new TranslationBounds();
+
+        private float mStartX;
+
+        private float mStartY;
+
+        /**
+         * The position on the deceleration curve applied by the last frame.
+         * Only the progress of the curve since then is added to the transform,
+         * so that the scroll by the finger during the flywheel is kept.
+         */
+        private float mLastOffsetX;
+
+        private float mLastOffsetY;
+
+        /** The distance which the fling would go without the bounds */
+        private int mDistanceX;
+
+        private int mDistanceY;
+
+        /** The exponent of the deceleration curve which matches the initial velocity */
+        private float mExponentX;
+
+        private float mExponentY;
+
+        private long mStartTimeNanos;
+
+        private long mDurationNanos;
+
+        private boolean mRunning;
 
         private static final int FLYWHEEL_TIMEOUT = 40; // milliseconds
 
-        private final Runnable mCheckFlywheel = new Runnable() {
+        private final Choreographer.FrameCallback mCheckFlywheel = new Choreographer.FrameCallback() {
             @Override
-            public void run() {
+            public void doFrame(long frameTimeNanos) {
                 final int activeId = mActivePointerId;
                 final VelocityTracker vt = mVelocityTracker;
                 if (vt == null || activeId == INVALID_POINTER) {
@@ -534,10 +1915,10 @@ public class PinchableImageView extends ImageView {
 
                 if (hypot(xvel, yvel) >= mMinimumVelocity) {
                     // Keep the fling alive a little longer
-                    postDelayed(this, FLYWHEEL_TIMEOUT);
+                    mChoreographer.postFrameCallbackDelayed(this, FLYWHEEL_TIMEOUT);
                 } else {
                     endFling();
-                    mTouchMode = TouchMode.TOUCH_MODE_SCROLL;
+                    setTouchMode(TouchMode.TOUCH_MODE_SCROLL);
                 }
             }
         };
@@ -546,76 +1927,120 @@ public class PinchableImageView extends ImageView {
             mScroller = new Scroller(getContext());
         }
 
-        public void start(int initialVelocityX, int initialVelocityY) {
-            int initialX = initialVelocityX < 0 ? Integer.MAX_VALUE : 0;
-            int initialY = initialVelocityY < 0 ? Integer.MAX_VALUE : 0;
-            mLastFling.set(initialX, initialY);
-            mScroller.fling(initialX, initialY, initialVelocityX, initialVelocityY,
-                    0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE);
-            mTouchMode = TouchMode.TOUCH_MODE_FLING;
-            post(this);
-        }
+        /**
+         * @param initialVelocityX Positive numbers mean the image moves right.
+         * @param initialVelocityY Positive numbers mean the image moves down.
+         * @param startTimeNanos the time when the fling starts, in the same time base as
+         *                       the frame time of {@link Choreographer}
+         */
+        public void start(float initialVelocityX, float initialVelocityY, long startTimeNanos) {
+            ensureTransform();
+            mEngine.getTranslationBounds(mBounds);
+            mStartX = mTransform.getTranslateX();
+            mStartY = mTransform.getTranslateY();
+
+            mScroller.fling(0, 0, (int) initialVelocityX, (int) initialVelocityY,
+                    Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE);
+            mDistanceX = mScroller.getFinalX();
+            mDistanceY = mScroller.getFinalY();
+            int duration = mScroller.getDuration();
+            mScroller.abortAnimation();
+            if (duration <= 0) {
+                endFling();
+                return;
+            }
 
-        public void edgeReached() {
-            mTouchMode = TouchMode.TOUCH_MODE_REST;
-            invalidate();
-            post(this);
+            if (mTileManager != null) {
+                // Prefetch the tiles toward the position where the fling stops
+                final float endX = Math.max(mBounds.left, Math.min(mStartX + mDistanceX, mBounds.right));
+                final float endY = Math.max(mBounds.top, Math.min(mStartY + mDistanceY, mBounds.bottom));
+                mTileManager.setPrefetchOffset(endX - mStartX, endY - mStartY);
+            }
+
+            mExponentX = calcExponent(initialVelocityX, mDistanceX, duration);
+            mExponentY = calcExponent(initialVelocityY, mDistanceY, duration);
+            mDurationNanos = duration * 1000000L;
+            mStartTimeNanos = startTimeNanos;
+            mLastOffsetX = 0;
+            mLastOffsetY = 0;
+            mRunning = true;
+            setTouchMode(TouchMode.TOUCH_MODE_FLING);
+            mChoreographer.postFrameCallback(this);
         }
 
         public void endFling() {
-            mTouchMode = TouchMode.TOUCH_MODE_REST;
-
-            removeCallbacks(this);
-            removeCallbacks(mCheckFlywheel);
+            if (mRunning) {
+                onGestureFinished(GESTURE_FLING);
+            }
+            setTouchMode(TouchMode.TOUCH_MODE_REST);
+            mRunning = false;
 
-            mScroller.abortAnimation();
+            mChoreographer.removeFrameCallback(this);
+            mChoreographer.removeFrameCallback(mCheckFlywheel);
         }
 
         public void flywheelTouch() {
-            postDelayed(mCheckFlywheel, FLYWHEEL_TIMEOUT);
+            mChoreographer.postFrameCallbackDelayed(mCheckFlywheel, FLYWHEEL_TIMEOUT);
         }
 
         @Override
-        public void run() {
+        public void doFrame(long frameTimeNanos) {
             switch (mTouchMode) {
                 default:
                     endFling();
                     return;
 
                 case TOUCH_MODE_SCROLL:
-                    if (mScroller.isFinished()) {
+                    if (!mRunning) {
                         return;
                     }
                     // Fall through
                 case TOUCH_MODE_FLING: {
-                    final Scroller scroller = mScroller;
-                    boolean more = scroller.computeScrollOffset();
-                    int x = scroller.getCurrX();
-                    int y = scroller.getCurrY();
-
-                    int deltaX = mLastFling.x - x;
-                    int deltaY = mLastFling.y - y;
-
-                    // Don't stop just because delta is zero (it could have been rounded)
-                    final boolean atEdge = trackMotionScroll(deltaX, deltaY);
-                    final boolean atEnd = atEdge && (deltaX != 0) && (deltaY != 0);
-                    if (atEnd) {
-                        if (more) {
-                            edgeReached();
-                        }
-                        break;
+                    float fraction = (float) (frameTimeNanos - mStartTimeNanos) / mDurationNanos;
+                    fraction = Math.max(0.0f, Math.min(fraction, 1.0f));
+
+                    final float offsetX = mDistanceX * interpolate(fraction, mExponentX);
+                    final float offsetY = mDistanceY * interpolate(fraction, mExponentY);
+                    final float deltaX = offsetX - mLastOffsetX;
+                    final float deltaY = offsetY - mLastOffsetY;
+                    mLastOffsetX = offsetX;
+                    mLastOffsetY = offsetY;
+
+                    if (!trackMotionScroll(deltaX, deltaY)) {
+                        onTransformChanged(GESTURE_FLING, frameTimeNanos);
                     }
 
-                    if (more) {
-                        if (atEdge) invalidate();
-                        mLastFling.set(x, y);
-                        post(this);
-                    } else {
+                    // Finish as soon as both axes reach the edges
+                    final float x = mTransform.getTranslateX();
+                    final float y = mTransform.getTranslateY();
+                    final boolean atEdgeX = mDistanceX == 0
+                            || (mDistanceX < 0 ? x <= mBounds.left : x >= mBounds.right);
+                    final boolean atEdgeY = mDistanceY == 0
+                            || (mDistanceY < 0 ? y <= mBounds.top : y >= mBounds.bottom);
+                    if (fraction >= 1.0f || (atEdgeX && atEdgeY)) {
                         endFling();
+                        invalidate();
+                    } else {
+                        mChoreographer.postFrameCallback(this);
                     }
                     break;
                 }
             }
         }
+
+        /**
+         * Calc the exponent {@code k} of {@code 1 - (1 - t)^k}
+         * so that its initial slope matches the initial velocity.
+         */
+        private float calcExponent(float velocity, int distance, int duration) {
+            if (distance == 0) {
+                return 1.0f;
+            }
+            return Math.max(1.0f, velocity * duration / 1000.0f / distance);
+        }
+
+        private float interpolate(float fraction, float exponent) {
+            return 1.0f - (float) Math.pow(1.0f - fraction, exponent);
+        }
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.graphics.BitmapRegionDecoder;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * <p>
+ * A pool of {@link BitmapRegionDecoder}s opened on the same file.
+ * </p>
+ * <p>
+ * A {@link BitmapRegionDecoder} serializes {@code decodeRegion()} internally,
+ * so each worker thread takes its own instance to decode regions in parallel.
+ * The first instance is opened by the constructor and the others are opened
+ * when all opened ones are in use, up to the maximum size.
+ * When the maximum number of instances are in use, {@link #acquire()} waits for one of them.
+ * This class is thread safe.
+ * </p>
+ */
+final class RegionDecoderPool {
+    private final String mPathName;
+
+    private final ArrayDeque<BitmapRegionDecoder> mIdle = new ArrayDeque<>();
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    private int mMaxSize;
+
+    /** The number of the opened instances including the ones in use */
+    private int mSize;
+
+    private boolean mRecycled;
+
+    /**
+     * @param pathName the path of a JPEG or PNG file
+     * @param maxSize the maximum number of instances
+     * @throws IOException if the file can not be opened or its format is not supported
+     */
+    RegionDecoderPool(String pathName, int maxSize) throws IOException {
+        final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(pathName, false);
+        mPathName = pathName;
+        mMaxSize = Math.max(1, maxSize);
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mIdle.push(decoder);
+        mSize = 1;
+    }
+
+    String getPathName() {
+        return mPathName;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Take a decoder out of the pool. It has to be given back by {@link #release}.
+     * This method must not be called in UI thread because it may open the file or wait.
+     *
+     * @return a decoder, or null if this pool has been recycled or the thread is interrupted
+     */
+    BitmapRegionDecoder acquire() {
+        synchronized (this) {
+            while (true) {
+                if (mRecycled) {
+                    return null;
+                }
+                if (!mIdle.isEmpty()) {
+                    return mIdle.pop();
+                }
+                if (mSize < mMaxSize) {
+                    mSize++;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(mPathName, false);
+        } catch (IOException e) {
+            decoder = null;
+        }
+
+        synchronized (this) {
+            if (decoder == null) {
+                // The file can't be opened any more. Share the opened instances.
+                mSize--;
+                mMaxSize = Math.max(1, mSize);
+                notifyAll();
+                return acquire();
+            }
+            if (mRecycled) {
+                mSize--;
+                decoder.recycle();
+                return null;
+            }
+            return decoder;
+        }
+    }
+
+    /**
+     * Give back a decoder taken by {@link #acquire()}.
+     * If this pool has been recycled, the decoder is recycled.
+     */
+    synchronized void release(BitmapRegionDecoder decoder) {
+        if (mRecycled) {
+            mSize--;
+            decoder.recycle();
+            return;
+        }
+        mIdle.push(decoder);
+        notify();
+    }
+
+    /**
+     * Recycle the idle decoders except one. The others are opened again when needed.
+     */
+    synchronized void trim() {
+        while (mIdle.size() > 1) {
+            mIdle.pop().recycle();
+            mSize--;
+        }
+    }
+
+    /**
+     * Recycle all decoders. The decoders in use are recycled when they are given back,
+     * so this method doesn't wait for the running decodes.
+     */
+    synchronized void recycle() {
+        mRecycled = true;
+        while (!mIdle.isEmpty()) {
+            mIdle.pop().recycle();
+            mSize--;
+        }
+        notifyAll();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * An LRU cache of decoded tiles whose size is limited by the byte count of the bitmaps.
+ * A tile is identified by its pyramid level, column and row.
+ * The level is {@code log2(sampleSize)}.
+ * </p>
+ * <p>
+ * The entries are evicted in least-recently-drawn order.
+ * The tiles which have been drawn in the current frame are never evicted
+ * even if the cache is full, because they will be drawn again soon.
+ * Evicted bitmaps are put into a {@link BitmapPool} to be reused by following decodes.
+ * All methods must be called in UI thread.
+ * </p>
+ */
+final class TileCache {
+    private final LinkedHashMap<Key, Entry> mMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final BitmapPool mBitmapPool;
+
+    /** The key which is used to look up entries to avoid instantiating it every time. */
+    private final Key mLookupKey = new Key();
+
+    private int mMaxSize;
+
+    private int mSize;
+
+    private long mFrame;
+
+    private long mHitCount;
+
+    private long mMissCount;
+
+    private long mEvictionCount;
+
+    private long mDedupCount;
+
+    /**
+     * @param maxSize the maximum byte count of the bitmaps in this cache
+     * @param bitmapPool the pool which receives evicted bitmaps
+     */
+    TileCache(int maxSize, BitmapPool bitmapPool) {
+        mMaxSize = maxSize;
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Start a new frame.
+     * The tiles which will be returned by {@link #get} are treated as drawn in this frame.
+     */
+    void beginFrame() {
+        mFrame++;
+    }
+
+    /**
+     * Get a tile to draw it. It's counted as a hit or a miss.
+     *
+     * @return the bitmap of the tile or null if it's not cached.
+     */
+    Bitmap get(int level, int column, int row) {
+        Entry entry = mMap.get(mLookupKey.set(level, column, row));
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        entry.mDrawnFrame = mFrame;
+        return entry.mBitmap;
+    }
+
+    /**
+     * Get a tile to draw it instead of another tile. It's not counted as a hit or a miss.
+     *
+     * @return the bitmap of the tile or null if it's not cached.
+     */
+    Bitmap peek(int level, int column, int row) {
+        Entry entry = mMap.get(mLookupKey.set(level, column, row));
+        if (entry == null) {
+            return null;
+        }
+        entry.mDrawnFrame = mFrame;
+        return entry.mBitmap;
+    }
+
+    /**
+     * @return true if the tile is cached. It doesn't affect the order of eviction.
+     */
+    boolean contains(int level, int column, int row) {
+        return mMap.containsKey(mLookupKey.set(level, column, row));
+    }
+
+    void put(int level, int column, int row, Bitmap bitmap) {
+        Entry entry = new Entry(bitmap);
+        Entry previous = mMap.put(new Key().set(level, column, row), entry);
+        mSize += entry.mSize;
+        if (previous != null) {
+            mSize -= previous.mSize;
+            onEntryRemoved(previous);
+        }
+        trimToSize(mMaxSize);
+    }
+
+    void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Remove all entries including the ones drawn in the current frame.
+     */
+    void evictAll() {
+        for (Entry entry : mMap.values()) {
+            onEntryRemoved(entry);
+        }
+        mMap.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Count a request which has been attached to the decode of the same tile in flight.
+     */
+    void recordDedup() {
+        mDedupCount++;
+    }
+
+    TileStats getStats() {
+        return new TileStats(mHitCount, mMissCount, mEvictionCount, mDedupCount, mSize, mMaxSize);
+    }
+
+    private void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Key, Entry>> iterator = mMap.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            if (eldest.mDrawnFrame == mFrame) {
+                // The rest of entries are also drawn in this frame.
+                break;
+            }
+            iterator.remove();
+            mSize -= eldest.mSize;
+            mEvictionCount++;
+            onEntryRemoved(eldest);
+        }
+    }
+
+    private void onEntryRemoved(Entry entry) {
+        mBitmapPool.put(entry.mBitmap);
+    }
+
+    private static final class Key {
+        int mLevel;
+
+        int mColumn;
+
+        int mRow;
+
+        Key set(int level, int column, int row) {
+            mLevel = level;
+            mColumn = column;
+            mRow = row;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mLevel == key.mLevel && mColumn == key.mColumn && mRow == key.mRow;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mLevel * 31 + mColumn) * 31 + mRow;
+        }
+    }
+
+    private static final class Entry {
+        final Bitmap mBitmap;
+
+        final int mSize;
+
+        /** The frame in which this entry was returned by {@link #get} last time */
+        long mDrawnFrame = -1;
+
+        Entry(Bitmap bitmap) {
+            mBitmap = bitmap;
+            mSize = bitmap.getByteCount();
+        }
+    }
+}
@@ -0,0 +1,790 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.kokufu.android.lib.ui.widget.viewport.ViewportTransform;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * This class decodes and draws an image which is too large to be decoded into one bitmap.
+ * The image is divided into tiles and only the tiles which intersect the viewport are decoded.
+ * </p>
+ * <p>
+ * The tiles are decoded with the largest power-of-two sample size
+ * which doesn't make the image blurry at the current scale.
+ * Decoding runs on a bounded pool of worker threads, each of which takes its own decoder
+ * from a {@link RegionDecoderPool}, and the requests
+ * whose tiles have gone out of the viewport are cancelled before they start.
+ * The tiles which are predicted to become visible by {@link #setPrefetchOffset(float, float)}
+ * are requested after the visible ones, at lower priority.
+ * The pending requests are reordered whenever the viewport moves,
+ * so that the tiles nearest to the center of the viewport are decoded first.
+ * Decoded tiles are kept in a {@link TileCache} so that they can be reused
+ * when the viewport comes back, and their pixel buffers are reused through a {@link BitmapPool}.
+ * Optionally, they are also stored in a {@link DiskTileCache} so that they are not decoded again
+ * when the same image is opened later.
+ * All methods must be called in UI thread.
+ * </p>
+ * <p>
+ * The decoded levels form a pyramid. A tile which is not decoded yet is
+ * filled with the part of a coarser resident tile.
+ * While pinching, no tiles are requested and the view is drawn only from resident levels
+ * so that every scale step doesn't trigger new decodes.
+ * </p>
+ */
+final class TileManager {
+    /**
+     * The callback to be notified when a tile is ready to be drawn.
+     */
+    interface Callback {
+        void onTileDecoded();
+    }
+
+    /** The width and height of a tile in decoded pixels */
+    static final int TILE_SIZE = 256;
+
+    /** The number of the worker threads, which is also the maximum number of decoders per image */
+    static final int DECODE_THREAD_COUNT =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TileDecoder #" + mCount.getAndIncrement());
+        }
+    };
+
+    /**
+     * The worker threads shared by all instances.
+     * Each runnable decodes the tile which has the highest priority
+     * in the {@link #mQueue} of an instance at that time.
+     */
+    private static final ThreadPoolExecutor sDecodeExecutor;
+
+    static {
+        sDecodeExecutor = new ThreadPoolExecutor(DECODE_THREAD_COUNT, DECODE_THREAD_COUNT,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+        sDecodeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final RegionDecoderPool mDecoders;
+
+    /** The second tier of {@link #mCache}. It's null if it's disabled. */
+    private final DiskTileCache mDiskCache;
+
+    /** Stores all tiles into {@link #mDiskCache} in background. It's null when not building. */
+    private TilePyramidBuilder mPyramidBuilder;
+
+    private final TileCache mCache;
+
+    private final BitmapPool mBitmapPool;
+
+    private final Callback mCallback;
+
+    private final int mImageWidth;
+
+    private final int mImageHeight;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /** The viewport in image coordinates */
+    private final RectF mVisibleRect = new RectF();
+
+    /** A tile area in image coordinates. It's used as both the decoded region and the destination. */
+    private final Rect mTileRect = new Rect();
+
+    /** The area of a coarser tile which is drawn instead of a missing tile */
+    private final Rect mFallbackRect = new Rect();
+
+    /** The level whose tile contains whole image */
+    private final int mMaxLevel;
+
+    /** The sample size which is suitable for the current scale */
+    private int mSampleSize;
+
+    /** The pyramid level of {@link #mSampleSize}, that is {@code log2(mSampleSize)} */
+    private int mLevel;
+
+    private int mColumns;
+
+    private int mRows;
+
+    /**
+     * Requests of the tiles of the current level which are not decoded yet.
+     * The index is {@code row * mColumns + column}.
+     */
+    private DecodeTask[] mTasks;
+
+    /** The requests in {@link #mTasks}, so that they can be visited without walking the whole level */
+    private final ArrayList<DecodeTask> mPendingTasks = new ArrayList<>();
+
+    /**
+     * Requests which have been cancelled after a worker thread took them.
+     * They are still decoding, so a request of the same tile is attached to them.
+     */
+    private final ArrayList<DecodeTask> mCancelledRunningTasks = new ArrayList<>();
+
+    private boolean mRecycled;
+
+    /** True while pinching. The level is not changed and no tiles are requested. */
+    private boolean mPinching;
+
+    /** The range of the visible tiles. Both ends are inclusive. */
+    private int mLeft;
+
+    private int mTop;
+
+    private int mRight;
+
+    private int mBottom;
+
+    /** The predicted move of the image in viewport coordinates */
+    private float mPrefetchOffsetX;
+
+    private float mPrefetchOffsetY;
+
+    /**
+     * The range of the tiles which are visible or predicted to become visible.
+     * Both ends are inclusive.
+     */
+    private int mPrefetchLeft;
+
+    private int mPrefetchTop;
+
+    private int mPrefetchRight;
+
+    private int mPrefetchBottom;
+
+    /** The scale of the viewport transform */
+    private float mScaleX;
+
+    private float mScaleY;
+
+    /** The requests which are waiting for a worker thread */
+    private final DecodeQueue<DecodeTask> mQueue = new DecodeQueue<>();
+
+    /**
+     * Calculates the priority of a request from the current viewport.
+     * The visible tiles come first, then the coarser levels,
+     * then the tiles nearer to the center of the viewport.
+     */
+    private final DecodeQueue.KeyFunction<DecodeTask> mKeyFunction =
+            new DecodeQueue.KeyFunction<DecodeTask>() {
+                @Override
+                public long getKey(DecodeTask task) {
+                    final int level = Integer.numberOfTrailingZeros(task.mSampleSize);
+                    final float tileSpan = TILE_SIZE << level;
+                    final float dx = (task.mColumn + 0.5f) - mVisibleRect.centerX() / tileSpan;
+                    final float dy = (task.mRow + 0.5f) - mVisibleRect.centerY() / tileSpan;
+                    // The squared distance in 1/256 tiles
+                    final long distance = Math.min((long) ((dx * dx + dy * dy) * 256), 0xffffffffL);
+                    final long prefetch = isVisible(task.mColumn, task.mRow) ? 0 : 1;
+                    return prefetch << 40 | (long) (mMaxLevel - level) << 32 | distance;
+                }
+            };
+
+    /** Decodes the request which has the highest priority in {@link #mQueue} */
+    private final Runnable mDecodeNext = new Runnable() {
+        @Override
+        public void run() {
+            final DecodeTask task = mQueue.poll();
+            if (task != null) {
+                task.run();
+            }
+        }
+    };
+
+    /**
+     * @param diskCache the cache which keeps tiles across instances, or null.
+     *                  It's closed by {@link #recycle()}.
+     */
+    TileManager(RegionDecoderPool decoders, TileCache cache, DiskTileCache diskCache,
+                BitmapPool bitmapPool, Callback callback) {
+        mDecoders = decoders;
+        mCache = cache;
+        mDiskCache = diskCache;
+        mBitmapPool = bitmapPool;
+        mCallback = callback;
+        mImageWidth = decoders.getWidth();
+        mImageHeight = decoders.getHeight();
+
+        int maxLevel = 0;
+        while ((TILE_SIZE << maxLevel) < Math.max(mImageWidth, mImageHeight)) {
+            maxLevel++;
+        }
+        mMaxLevel = maxLevel;
+    }
+
+    int getImageWidth() {
+        return mImageWidth;
+    }
+
+    int getImageHeight() {
+        return mImageHeight;
+    }
+
+    /**
+     * Set whether the user is pinching or not.
+     * When pinching is finished, the tiles of the level suitable for the new scale
+     * are requested at the next {@link #draw}.
+     */
+    void setPinching(boolean pinching) {
+        mPinching = pinching;
+    }
+
+    /**
+     * Set how far the image is predicted to move.
+     * The tiles which the viewport sweeps are prefetched.
+     * The offset is limited to the size of the viewport, because the tiles far away
+     * may not be visible before the prediction changes.
+     *
+     * @param offsetX the move in viewport coordinates. Positive numbers mean the image moves right.
+     * @param offsetY the move in viewport coordinates. Positive numbers mean the image moves down.
+     */
+    void setPrefetchOffset(float offsetX, float offsetY) {
+        mPrefetchOffsetX = offsetX;
+        mPrefetchOffsetY = offsetY;
+        if (mTasks != null) {
+            updatePrefetchRange();
+        }
+    }
+
+    /**
+     * Update the viewport. The requests whose tiles are out of the new viewport are cancelled,
+     * and the others are reordered for the new viewport.
+     *
+     * @param transform the transform which maps image coordinates to viewport coordinates
+     * @param viewportWidth the width of the viewport
+     * @param viewportHeight the height of the viewport
+     */
+    void setViewport(ViewportTransform transform, int viewportWidth, int viewportHeight) {
+        final float scaleX = transform.getScaleX();
+        final float scaleY = transform.getScaleY();
+        if (scaleX <= 0 || scaleY <= 0) {
+            return;
+        }
+        final float translateX = transform.getTranslateX();
+        final float translateY = transform.getTranslateY();
+        mVisibleRect.set(-translateX / scaleX,
+                -translateY / scaleY,
+                (viewportWidth - translateX) / scaleX,
+                (viewportHeight - translateY) / scaleY);
+
+        int sampleSize = calcSampleSize(scaleX);
+        if (sampleSize != mSampleSize && (!mPinching || mTasks == null)) {
+            cancelRequests();
+            mSampleSize = sampleSize;
+            mLevel = Integer.numberOfTrailingZeros(sampleSize);
+            mColumns = divideRoundUp(mImageWidth, TILE_SIZE * sampleSize);
+            mRows = divideRoundUp(mImageHeight, TILE_SIZE * sampleSize);
+            mTasks = new DecodeTask[mColumns * mRows];
+        }
+
+        final int tileSpan = TILE_SIZE * mSampleSize;
+        mLeft = Math.max(0, (int) Math.floor(mVisibleRect.left / tileSpan));
+        mTop = Math.max(0, (int) Math.floor(mVisibleRect.top / tileSpan));
+        mRight = Math.min(mColumns - 1, (int) Math.floor(mVisibleRect.right / tileSpan));
+        mBottom = Math.min(mRows - 1, (int) Math.floor(mVisibleRect.bottom / tileSpan));
+        mScaleX = scaleX;
+        mScaleY = scaleY;
+        updatePrefetchRange();
+        mQueue.reprioritize(mKeyFunction);
+    }
+
+    /**
+     * Update the range of the prefetched tiles from the viewport and the prefetch offset,
+     * and cancel the requests of the tiles which are out of the range.
+     */
+    private void updatePrefetchRange() {
+        // The offset in image coordinates. The viewport moves in the opposite direction of the image.
+        final float visibleWidth = mVisibleRect.width();
+        final float visibleHeight = mVisibleRect.height();
+        final float dx = -Math.max(-visibleWidth, Math.min(mPrefetchOffsetX / mScaleX, visibleWidth));
+        final float dy = -Math.max(-visibleHeight, Math.min(mPrefetchOffsetY / mScaleY, visibleHeight));
+
+        final int tileSpan = TILE_SIZE * mSampleSize;
+        mPrefetchLeft = Math.max(0, (int) Math.floor((mVisibleRect.left + Math.min(0, dx)) / tileSpan));
+        mPrefetchTop = Math.max(0, (int) Math.floor((mVisibleRect.top + Math.min(0, dy)) / tileSpan));
+        mPrefetchRight = Math.min(mColumns - 1,
+                (int) Math.floor((mVisibleRect.right + Math.max(0, dx)) / tileSpan));
+        mPrefetchBottom = Math.min(mRows - 1,
+                (int) Math.floor((mVisibleRect.bottom + Math.max(0, dy)) / tileSpan));
+
+        // Cancel the requests of the tiles which have gone out of the range
+        for (int i = mPendingTasks.size() - 1; i >= 0; i--) {
+            DecodeTask task = mPendingTasks.get(i);
+            if (!isPrefetched(task.mColumn, task.mRow)) {
+                cancelTask(task);
+                mTasks[task.mRow * mColumns + task.mColumn] = null;
+                removePendingTask(i);
+            }
+        }
+    }
+
+    /**
+     * Draw the tiles which intersect the viewport set by {@link #setViewport}.
+     * The tiles which are not decoded yet are requested unless pinching.
+     *
+     * @param canvas the canvas whose origin is the top-left of the viewport
+     * @param transform the transform which maps image coordinates to viewport coordinates
+     */
+    void draw(Canvas canvas, ViewportTransform transform) {
+        if (mTasks == null) {
+            return;
+        }
+
+        mCache.beginFrame();
+        int saveCount = canvas.save();
+        canvas.translate(transform.getTranslateX(), transform.getTranslateY());
+        canvas.scale(transform.getScaleX(), transform.getScaleY());
+        if (mPinching) {
+            drawResidentLevel(canvas);
+        } else {
+            drawCurrentLevel(canvas);
+        }
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * Draw the tiles of the level suitable for the current scale and request the missing ones.
+     */
+    private void drawCurrentLevel(Canvas canvas) {
+        for (int row = mTop; row <= mBottom; row++) {
+            for (int column = mLeft; column <= mRight; column++) {
+                setTileRect(mTileRect, mLevel, column, row);
+                Bitmap tile = null;
+                int index = row * mColumns + column;
+                if (mTasks[index] == null) {
+                    tile = mCache.get(mLevel, column, row);
+                    if (tile == null) {
+                        requestTile(column, row);
+                    }
+                }
+
+                if (tile != null) {
+                    canvas.drawBitmap(tile, null, mTileRect, mPaint);
+                } else {
+                    drawFallback(canvas, mLevel, column, row);
+                }
+            }
+        }
+
+        requestPrefetchTiles();
+    }
+
+    /**
+     * Request the tiles which are predicted to become visible and are not in the cache.
+     */
+    private void requestPrefetchTiles() {
+        for (int row = mPrefetchTop; row <= mPrefetchBottom; row++) {
+            for (int column = mPrefetchLeft; column <= mPrefetchRight; column++) {
+                int index = row * mColumns + column;
+                if (isVisible(column, row) || mTasks[index] != null || mCache.contains(mLevel, column, row)) {
+                    continue;
+                }
+                requestTile(column, row);
+            }
+        }
+    }
+
+    private void requestTile(int column, int row) {
+        final int index = row * mColumns + column;
+        for (int i = 0; i < mCancelledRunningTasks.size(); i++) {
+            DecodeTask task = mCancelledRunningTasks.get(i);
+            if (task.mSampleSize == mSampleSize && task.mColumn == column && task.mRow == row) {
+                // The tile is still decoding. Attach to it instead of decoding it again.
+                mCancelledRunningTasks.remove(i);
+                task.mCancelled = false;
+                mTasks[index] = task;
+                mPendingTasks.add(task);
+                mCache.recordDedup();
+                return;
+            }
+        }
+
+        DecodeTask task = new DecodeTask(mSampleSize, column, row);
+        mTasks[index] = task;
+        mPendingTasks.add(task);
+        mQueue.add(task, mKeyFunction.getKey(task));
+        sDecodeExecutor.execute(mDecodeNext);
+    }
+
+    /**
+     * Draw the tiles of the level used when pinching started if they cover the viewport.
+     * Otherwise, draw the finest coarser level which covers the viewport.
+     * If no level covers it, draw the resident tiles of the coarsest level which has any of them,
+     * so that the number of the tiles drawn per frame stays small.
+     */
+    private void drawResidentLevel(Canvas canvas) {
+        int level = mLevel;
+        while (level <= mMaxLevel && !isResident(level)) {
+            level++;
+        }
+        if (level > mMaxLevel) {
+            level = mMaxLevel;
+            while (level > mLevel && !hasResidentTile(level)) {
+                level--;
+            }
+        }
+
+        final int tileSpan = TILE_SIZE << level;
+        final int left = Math.max(0, (int) Math.floor(mVisibleRect.left / tileSpan));
+        final int top = Math.max(0, (int) Math.floor(mVisibleRect.top / tileSpan));
+        final int right = Math.min(divideRoundUp(mImageWidth, tileSpan) - 1,
+                (int) Math.floor(mVisibleRect.right / tileSpan));
+        final int bottom = Math.min(divideRoundUp(mImageHeight, tileSpan) - 1,
+                (int) Math.floor(mVisibleRect.bottom / tileSpan));
+        for (int row = top; row <= bottom; row++) {
+            for (int column = left; column <= right; column++) {
+                setTileRect(mTileRect, level, column, row);
+                Bitmap tile = mCache.peek(level, column, row);
+                if (tile != null) {
+                    canvas.drawBitmap(tile, null, mTileRect, mPaint);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if any tile of the level which intersects the viewport is in the cache.
+     */
+    private boolean hasResidentTile(int level) {
+        final int tileSpan = TILE_SIZE << level;
+        final int left = Math.max(0, (int) Math.floor(mVisibleRect.left / tileSpan));
+        final int top = Math.max(0, (int) Math.floor(mVisibleRect.top / tileSpan));
+        final int right = Math.min(divideRoundUp(mImageWidth, tileSpan) - 1,
+                (int) Math.floor(mVisibleRect.right / tileSpan));
+        final int bottom = Math.min(divideRoundUp(mImageHeight, tileSpan) - 1,
+                (int) Math.floor(mVisibleRect.bottom / tileSpan));
+        for (int row = top; row <= bottom; row++) {
+            for (int column = left; column <= right; column++) {
+                if (mCache.contains(level, column, row)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if all tiles of the level which intersect the viewport are in the cache.
+     */
+    private boolean isResident(int level) {
+        final int tileSpan = TILE_SIZE << level;
+        final int left = Math.max(0, (int) Math.floor(mVisibleRect.left / tileSpan));
+        final int top = Math.max(0, (int) Math.floor(mVisibleRect.top / tileSpan));
+        final int right = Math.min(divideRoundUp(mImageWidth, tileSpan) - 1,
+                (int) Math.floor(mVisibleRect.right / tileSpan));
+        final int bottom = Math.min(divideRoundUp(mImageHeight, tileSpan) - 1,
+                (int) Math.floor(mVisibleRect.bottom / tileSpan));
+        for (int row = top; row <= bottom; row++) {
+            for (int column = left; column <= right; column++) {
+                if (!mCache.contains(level, column, row)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Draw the part of the nearest coarser resident tile instead of a missing tile.
+     * {@link #mTileRect} must be the area of the missing tile.
+     */
+    private void drawFallback(Canvas canvas, int level, int column, int row) {
+        for (int coarserLevel = level + 1; coarserLevel <= mMaxLevel; coarserLevel++) {
+            int shift = coarserLevel - level;
+            Bitmap coarserTile = mCache.peek(coarserLevel, column >> shift, row >> shift);
+            if (coarserTile == null) {
+                continue;
+            }
+
+            // The area of the missing tile in the pixels of the coarser tile
+            final int originX = (column >> shift) * (TILE_SIZE << coarserLevel);
+            final int originY = (row >> shift) * (TILE_SIZE << coarserLevel);
+            mFallbackRect.set((mTileRect.left - originX) >> coarserLevel,
+                    (mTileRect.top - originY) >> coarserLevel,
+                    (mTileRect.right - originX) >> coarserLevel,
+                    (mTileRect.bottom - originY) >> coarserLevel);
+            canvas.drawBitmap(coarserTile, mFallbackRect, mTileRect, mPaint);
+            return;
+        }
+    }
+
+    /**
+     * Cancel all requests.
+     * The tiles will be requested again when {@link #draw} is called.
+     */
+    void cancelRequests() {
+        for (int i = 0; i < mPendingTasks.size(); i++) {
+            DecodeTask task = mPendingTasks.get(i);
+            cancelTask(task);
+            mTasks[task.mRow * mColumns + task.mColumn] = null;
+        }
+        mPendingTasks.clear();
+    }
+
+    /**
+     * Remove a request from {@link #mPendingTasks} without shifting the following ones.
+     */
+    private void removePendingTask(int i) {
+        final DecodeTask last = mPendingTasks.remove(mPendingTasks.size() - 1);
+        if (i < mPendingTasks.size()) {
+            mPendingTasks.set(i, last);
+        }
+    }
+
+    /**
+     * Release all resources. This instance can not be used any more.
+     */
+    void recycle() {
+        cancelRequests();
+        stopPyramidBuild();
+        mRecycled = true;
+        mTasks = null;
+        mCancelledRunningTasks.clear();
+        mSampleSize = 0;
+        // The decoders which are decoding are recycled when they finish.
+        mDecoders.recycle();
+        if (mDiskCache != null) {
+            mDiskCache.close();
+        }
+    }
+
+    /**
+     * Start storing all tiles into the disk cache in background.
+     * It does nothing if the disk cache is disabled or it's already building.
+     * The tiles which have been stored by the previous builds are skipped.
+     */
+    void startPyramidBuild() {
+        if (mDiskCache == null || mRecycled || mPyramidBuilder != null) {
+            return;
+        }
+        mPyramidBuilder = new TilePyramidBuilder(mDecoders, mDiskCache, TILE_SIZE, mMaxLevel);
+        mPyramidBuilder.start();
+    }
+
+    /**
+     * Stop storing the tiles started by {@link #startPyramidBuild()}.
+     */
+    void stopPyramidBuild() {
+        if (mPyramidBuilder != null) {
+            mPyramidBuilder.cancel();
+            mPyramidBuilder = null;
+        }
+    }
+
+    /**
+     * Close the decoders which are not needed until the next requests.
+     */
+    void trimDecoders() {
+        mDecoders.trim();
+    }
+
+    private boolean isVisible(int column, int row) {
+        return row >= mTop && row <= mBottom && column >= mLeft && column <= mRight;
+    }
+
+    private boolean isPrefetched(int column, int row) {
+        return row >= mPrefetchTop && row <= mPrefetchBottom
+                && column >= mPrefetchLeft && column <= mPrefetchRight;
+    }
+
+    private void setTileRect(Rect rect, int level, int column, int row) {
+        final int tileSpan = TILE_SIZE << level;
+        rect.set(column * tileSpan,
+                row * tileSpan,
+                Math.min(mImageWidth, (column + 1) * tileSpan),
+                Math.min(mImageHeight, (row + 1) * tileSpan));
+    }
+
+    private void cancelTask(DecodeTask task) {
+        task.mCancelled = true;
+        if (!mQueue.remove(task)) {
+            mCancelledRunningTasks.add(task);
+        }
+    }
+
+    /**
+     * Called in UI thread when a tile has been decoded.
+     */
+    private void onTaskFinished(DecodeTask task, Bitmap bitmap) {
+        if (mRecycled) {
+            if (bitmap != null) {
+                mBitmapPool.put(bitmap);
+            }
+            return;
+        }
+
+        if (task.mCancelled) {
+            mCancelledRunningTasks.remove(task);
+        } else if (task.mSampleSize == mSampleSize) {
+            mTasks[task.mRow * mColumns + task.mColumn] = null;
+            mPendingTasks.remove(task);
+        }
+        if (bitmap == null) {
+            return;
+        }
+
+        // Even if the request has been cancelled while decoding,
+        // the tile is cached because it may be drawn later.
+        mCache.put(Integer.numberOfTrailingZeros(task.mSampleSize), task.mColumn, task.mRow, bitmap);
+        if (!task.mCancelled && isVisible(task.mColumn, task.mRow)) {
+            mCallback.onTileDecoded();
+        }
+    }
+
+    /**
+     * Decodes a tile in a worker thread.
+     */
+    private class DecodeTask implements Runnable {
+        final int mSampleSize;
+
+        final int mColumn;
+
+        final int mRow;
+
+        /**
+         * It's changed only in UI thread, and it's set back to false
+         * when the same tile is requested again while decoding.
+         */
+        boolean mCancelled;
+
+        DecodeTask(int sampleSize, int column, int row) {
+            mSampleSize = sampleSize;
+            mColumn = column;
+            mRow = row;
+        }
+
+        @Override
+        public void run() {
+            // Even if the request has been cancelled, it's decoded and finished in UI thread
+            // because a request of the same tile may have been attached to it.
+            final int level = Integer.numberOfTrailingZeros(mSampleSize);
+            Rect rect = new Rect();
+            setTileRect(rect, level, mColumn, mRow);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = mSampleSize;
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            options.inMutable = true;
+            options.inBitmap = mBitmapPool.get(
+                    divideRoundUp(rect.width(), mSampleSize),
+                    divideRoundUp(rect.height(), mSampleSize),
+                    options.inPreferredConfig);
+
+            Bitmap bitmap = null;
+            if (mDiskCache != null) {
+                bitmap = mDiskCache.get(level, mColumn, mRow, options.inBitmap);
+                if (bitmap != null && bitmap != options.inBitmap && options.inBitmap != null) {
+                    mBitmapPool.put(options.inBitmap);
+                }
+            }
+
+            if (bitmap == null) {
+                final BitmapRegionDecoder decoder = mDecoders.acquire();
+                if (decoder == null) {
+                    // The decoders have been recycled
+                    if (options.inBitmap != null) {
+                        mBitmapPool.put(options.inBitmap);
+                    }
+                    return;
+                }
+                try {
+                    bitmap = decodeRegion(decoder, rect, options);
+                } finally {
+                    mDecoders.release(decoder);
+                }
+                if (bitmap != null && mDiskCache != null) {
+                    mDiskCache.put(level, mColumn, mRow, bitmap);
+                }
+            }
+
+            final Bitmap result = bitmap;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onTaskFinished(DecodeTask.this, result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Calc the largest power-of-two sample size which keeps one decoded pixel
+     * smaller than or equal to one screen pixel.
+     *
+     * @param scale the current scale
+     * @return the sample size
+     */
+    static int calcSampleSize(float scale) {
+        int sampleSize = 1;
+        if (scale <= 0) {
+            return sampleSize;
+        }
+        while (sampleSize * 2 * scale <= 1.0f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect rect, BitmapFactory.Options options) {
+        if (options.inBitmap == null) {
+            return decoder.decodeRegion(rect, options);
+        }
+
+        try {
+            return decoder.decodeRegion(rect, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap can't be reused for this region. Decode it into a new bitmap.
+            mBitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return decoder.decodeRegion(rect, options);
+        }
+    }
+
+    static int divideRoundUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * Stores all tiles of an image into a {@link DiskTileCache} in background,
+ * so that the following opens of the image are drawn without decoding it.
+ * </p>
+ * <p>
+ * The levels are built from the coarsest one, and each level is decoded in strips
+ * which are a row of tiles high and as wide as the image, up to {@link #MAX_STRIP_BYTES}.
+ * Decoding a region of a baseline JPEG has to read the file from the top,
+ * so decoding a row of tiles at once is much faster than decoding them one by one.
+ * The tiles which are already stored are skipped, so only the first build does the work.
+ * It stops when the cache is full or closed.
+ * </p>
+ * <p>
+ * It opens its own decoder instead of taking one from the {@link RegionDecoderPool},
+ * so that the long strip decodes never make the decodes of visible tiles wait.
+ * </p>
+ */
+final class TilePyramidBuilder implements Runnable {
+    /** The maximum byte count of a decoded strip */
+    private static final int MAX_STRIP_BYTES = 16 * 1024 * 1024;
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /**
+     * The worker thread shared by all instances.
+     * It runs at lower priority than the threads which decode visible tiles.
+     */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    r.run();
+                }
+            }, "TilePyramidBuilder");
+        }
+    });
+
+    private final String mPathName;
+
+    private final int mImageWidth;
+
+    private final int mImageHeight;
+
+    private final DiskTileCache mDiskCache;
+
+    private final int mTileSize;
+
+    private final int mMaxLevel;
+
+    private final Rect mStripRect = new Rect();
+
+    private final Rect mSrcRect = new Rect();
+
+    private final Rect mDstRect = new Rect();
+
+    private final Paint mPaint = new Paint();
+
+    /** A bitmap which receives a tile cut out of a strip */
+    private Bitmap mTile;
+
+    private Future<?> mFuture;
+
+    private volatile boolean mCancelled;
+
+    /**
+     * @param tileSize the width and height of a tile in decoded pixels
+     * @param maxLevel the level whose tile contains whole image
+     */
+    TilePyramidBuilder(RegionDecoderPool decoders, DiskTileCache diskCache, int tileSize, int maxLevel) {
+        mPathName = decoders.getPathName();
+        mImageWidth = decoders.getWidth();
+        mImageHeight = decoders.getHeight();
+        mDiskCache = diskCache;
+        mTileSize = tileSize;
+        mMaxLevel = maxLevel;
+        // Copy the pixels as they are including alpha
+        mPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    void start() {
+        mFuture = sExecutor.submit(this);
+    }
+
+    /**
+     * Stop building. The tiles which have been stored are kept.
+     */
+    void cancel() {
+        mCancelled = true;
+        if (mFuture != null) {
+            mFuture.cancel(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (mCancelled) {
+            return;
+        }
+        final BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(mPathName, false);
+        } catch (IOException e) {
+            return;
+        }
+
+        try {
+            build(decoder);
+        } finally {
+            releaseTile();
+            decoder.recycle();
+        }
+    }
+
+    private void build(BitmapRegionDecoder decoder) {
+        final int stripColumns = Math.max(1, MAX_STRIP_BYTES / (mTileSize * mTileSize * BYTES_PER_PIXEL));
+        for (int level = mMaxLevel; level >= 0; level--) {
+            final int sampleSize = 1 << level;
+            final int tileSpan = mTileSize << level;
+            final int columns = TileManager.divideRoundUp(mImageWidth, tileSpan);
+            final int rows = TileManager.divideRoundUp(mImageHeight, tileSpan);
+            for (int row = 0; row < rows; row++) {
+                for (int left = 0; left < columns; left += stripColumns) {
+                    final int right = Math.min(columns, left + stripColumns);
+                    if (mCancelled || !buildStrip(decoder, level, sampleSize, tileSpan, row, left, right)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode the tiles of a row from the column {@code left} (inclusive)
+     * to {@code right} (exclusive) at once and store them.
+     *
+     * @return false if building has to be stopped
+     */
+    private boolean buildStrip(BitmapRegionDecoder decoder, int level, int sampleSize, int tileSpan,
+                               int row, int left, int right) {
+        int first = left;
+        while (first < right && mDiskCache.contains(level, first, row)) {
+            first++;
+        }
+        if (first == right) {
+            return true;
+        }
+
+        mStripRect.set(first * tileSpan,
+                row * tileSpan,
+                Math.min(mImageWidth, right * tileSpan),
+                Math.min(mImageHeight, (row + 1) * tileSpan));
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        final Bitmap strip = decoder.decodeRegion(mStripRect, options);
+        if (strip == null) {
+            // Skip the strip which can't be decoded
+            return true;
+        }
+
+        try {
+            for (int column = first; column < right; column++) {
+                final int x = (column - first) * mTileSize;
+                final int width = Math.min(mTileSize, strip.getWidth() - x);
+                if (width <= 0) {
+                    break;
+                }
+                final Bitmap tile = obtainTile(width, strip.getHeight());
+                mSrcRect.set(x, 0, x + width, strip.getHeight());
+                mDstRect.set(0, 0, width, strip.getHeight());
+                new Canvas(tile).drawBitmap(strip, mSrcRect, mDstRect, mPaint);
+                if (mCancelled || !mDiskCache.put(level, column, row, tile)) {
+                    return false;
+                }
+            }
+        } finally {
+            strip.recycle();
+        }
+        return true;
+    }
+
+    private Bitmap obtainTile(int width, int height) {
+        if (mTile == null || mTile.getWidth() != width || mTile.getHeight() != height) {
+            releaseTile();
+            mTile = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return mTile;
+    }
+
+    private void releaseTile() {
+        if (mTile != null) {
+            mTile.recycle();
+            mTile = null;
+        }
+    }
+}
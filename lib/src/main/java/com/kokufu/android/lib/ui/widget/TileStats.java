@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+/**
+ * <p>
+ * A snapshot of the statistics of the tile cache used in tiled mode.
+ * </p>
+ *
+ * @see PinchableImageView#getTileStats()
+ */
+public final class TileStats {
+    private final long mHitCount;
+
+    private final long mMissCount;
+
+    private final long mEvictionCount;
+
+    private final long mDedupCount;
+
+    private final int mSize;
+
+    private final int mMaxSize;
+
+    TileStats(long hitCount, long missCount, long evictionCount, long dedupCount, int size, int maxSize) {
+        mHitCount = hitCount;
+        mMissCount = missCount;
+        mEvictionCount = evictionCount;
+        mDedupCount = dedupCount;
+        mSize = size;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return the number of times a tile to draw was found in the cache
+     */
+    public long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of times a tile to draw was not found in the cache and had to be decoded
+     */
+    public long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of tiles which have been evicted to keep the cache in its limit
+     */
+    public long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return the number of times a tile was requested while its previous request was still decoding,
+     *         and the result of that decode was used instead of decoding it again
+     */
+    public long getDedupCount() {
+        return mDedupCount;
+    }
+
+    /**
+     * @return the byte count of the bitmaps in the cache
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the limit of the byte count of the bitmaps in the cache
+     */
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "TileStats{hits=" + mHitCount
+                + ", misses=" + mMissCount
+                + ", evictions=" + mEvictionCount
+                + ", dedups=" + mDedupCount
+                + ", size=" + mSize
+                + ", maxSize=" + mMaxSize
+                + "}";
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.view.MotionEvent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>
+ * A captured stream of touch events.
+ * </p>
+ * <p>
+ * In the text format, each line is an event like below.
+ * The pointer ids are the same as the pointer indices.
+ * Empty lines and lines which start with {@code #} are ignored.
+ * </p>
+ * <pre>
+ * # time(ms) action actionIndex x0 y0 [x1 y1 ...]
+ * 0 DOWN 0 540 960
+ * 16 MOVE 0 520 940
+ * 20 POINTER_DOWN 1 520 940 700 1200
+ * </pre>
+ * <p>
+ * A trace dumped by {@link PinchableImageView#dumpGestureTrace(java.io.OutputStream)}
+ * can be read by {@link #readTrace(String, InputStream)}.
+ * </p>
+ */
+final class GestureRecording {
+    static final class Event {
+        /** The time from the first event */
+        final long timeMillis;
+
+        /** One of {@code MotionEvent.ACTION_XXX} without the pointer index */
+        final int actionMasked;
+
+        final int actionIndex;
+
+        final float[] x;
+
+        final float[] y;
+
+        /** The samples batched into this event from the oldest one */
+        final List<Event> history;
+
+        Event(long timeMillis, int actionMasked, int actionIndex, float[] x, float[] y) {
+            this(timeMillis, actionMasked, actionIndex, x, y, Collections.<Event>emptyList());
+        }
+
+        Event(long timeMillis, int actionMasked, int actionIndex, float[] x, float[] y,
+              List<Event> history) {
+            this.timeMillis = timeMillis;
+            this.actionMasked = actionMasked;
+            this.actionIndex = actionIndex;
+            this.x = x;
+            this.y = y;
+            this.history = history;
+        }
+
+        int getPointerCount() {
+            return x.length;
+        }
+
+        /**
+         * @param downTime the time of the first event in {@code SystemClock.uptimeMillis()}
+         * @return a new event which has to be recycled by the caller
+         */
+        MotionEvent obtain(long downTime) {
+            final int pointerCount = getPointerCount();
+            final MotionEvent.PointerProperties[] properties =
+                    new MotionEvent.PointerProperties[pointerCount];
+            for (int i = 0; i < pointerCount; i++) {
+                properties[i] = new MotionEvent.PointerProperties();
+                properties[i].id = i;
+                properties[i].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            }
+            final int action = actionMasked
+                    | (actionIndex << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+
+            // The oldest sample makes the event, and the rest are batched into it
+            final Event first = history.isEmpty() ? this : history.get(0);
+            final MotionEvent event = MotionEvent.obtain(downTime, downTime + first.timeMillis,
+                    action, pointerCount, properties, first.toCoords(pointerCount),
+                    0, 0, 1.0f, 1.0f, 0, 0, 0, 0);
+            for (int h = 1; h < history.size(); h++) {
+                final Event sample = history.get(h);
+                event.addBatch(downTime + sample.timeMillis, sample.toCoords(pointerCount), 0);
+            }
+            if (first != this) {
+                event.addBatch(downTime + timeMillis, toCoords(pointerCount), 0);
+            }
+            return event;
+        }
+
+        private MotionEvent.PointerCoords[] toCoords(int pointerCount) {
+            final MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointerCount];
+            for (int i = 0; i < pointerCount; i++) {
+                coords[i] = new MotionEvent.PointerCoords();
+                coords[i].x = x[i];
+                coords[i].y = y[i];
+                coords[i].pressure = 1.0f;
+                coords[i].size = 1.0f;
+            }
+            return coords;
+        }
+    }
+
+    private final String mName;
+
+    private final List<Event> mEvents;
+
+    GestureRecording(String name, List<Event> events) {
+        mName = name;
+        mEvents = Collections.unmodifiableList(events);
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    List<Event> getEvents() {
+        return mEvents;
+    }
+
+    /**
+     * Read a recording in the text format.
+     *
+     * @throws IOException if the stream can not be read or its format is wrong
+     */
+    static GestureRecording read(String name, InputStream in) throws IOException {
+        final List<Event> events = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                final String[] fields = line.split("\\s+");
+                if (fields.length < 5 || (fields.length - 3) % 2 != 0) {
+                    throw new IOException(name + ":" + lineNumber + ": wrong number of fields");
+                }
+                try {
+                    final int pointerCount = (fields.length - 3) / 2;
+                    final float[] x = new float[pointerCount];
+                    final float[] y = new float[pointerCount];
+                    for (int i = 0; i < pointerCount; i++) {
+                        x[i] = Float.parseFloat(fields[3 + i * 2]);
+                        y[i] = Float.parseFloat(fields[4 + i * 2]);
+                    }
+                    events.add(new Event(Long.parseLong(fields[0]), parseAction(fields[1]),
+                            Integer.parseInt(fields[2]), x, y));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(name + ":" + lineNumber + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new GestureRecording(name, events);
+    }
+
+    /**
+     * Read the touch events of a trace dumped by {@link GestureTraceRecorder}.
+     * The historical samples are batched into the events again, and the other records are skipped.
+     *
+     * @throws IOException if the stream can not be read or its format is wrong
+     */
+    static GestureRecording readTrace(String name, InputStream in) throws IOException {
+        final List<Event> events = new ArrayList<>();
+        final DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+        try {
+            if (dis.readInt() != GestureTraceRecorder.MAGIC) {
+                throw new IOException(name + ": not a gesture trace");
+            }
+            final int version = dis.readInt();
+            if (version < 1 || version > GestureTraceRecorder.VERSION) {
+                throw new IOException(name + ": unsupported version " + version);
+            }
+
+            final int count = dis.readInt();
+            long firstEventMicros = -1;
+            List<Event> history = new ArrayList<>();
+            for (int n = 0; n < count; n++) {
+                final long timeMicros = dis.readInt();
+                final int header = dis.readInt();
+                final float[] values = new float[GestureTraceRecorder.MAX_POINTERS * 2];
+                for (int v = 0; v < values.length; v++) {
+                    values[v] = dis.readFloat();
+                }
+                final int type = header >>> 24;
+                if (type != GestureTraceRecorder.TYPE_EVENT
+                        && type != GestureTraceRecorder.TYPE_HISTORY) {
+                    continue;
+                }
+
+                if (firstEventMicros < 0) {
+                    firstEventMicros = timeMicros;
+                }
+                final int pointerCount = header & 0xff;
+                final float[] x = new float[pointerCount];
+                final float[] y = new float[pointerCount];
+                for (int i = 0; i < pointerCount; i++) {
+                    x[i] = values[i * 2];
+                    y[i] = values[i * 2 + 1];
+                }
+                final long timeMillis = (timeMicros - firstEventMicros) / 1000;
+                final int actionMasked = (header >>> 16) & 0xff;
+                final int actionIndex = (header >>> 8) & 0xff;
+                if (type == GestureTraceRecorder.TYPE_HISTORY) {
+                    history.add(new Event(timeMillis, actionMasked, actionIndex, x, y));
+                } else {
+                    events.add(new Event(timeMillis, actionMasked, actionIndex, x, y, history));
+                    history = new ArrayList<>();
+                }
+            }
+        } finally {
+            dis.close();
+        }
+        return new GestureRecording(name, events);
+    }
+
+    private static int parseAction(String action) {
+        switch (action) {
+            case "DOWN":
+                return MotionEvent.ACTION_DOWN;
+            case "UP":
+                return MotionEvent.ACTION_UP;
+            case "MOVE":
+                return MotionEvent.ACTION_MOVE;
+            case "CANCEL":
+                return MotionEvent.ACTION_CANCEL;
+            case "POINTER_DOWN":
+                return MotionEvent.ACTION_POINTER_DOWN;
+            case "POINTER_UP":
+                return MotionEvent.ACTION_POINTER_UP;
+            default:
+                throw new IllegalArgumentException("unknown action " + action);
+        }
+    }
+}
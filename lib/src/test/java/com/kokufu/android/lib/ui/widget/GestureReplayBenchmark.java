@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.widget.ImageView;
+
+import com.kokufu.android.lib.ui.widget.pinchableimageview.BuildConfig;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * Replays the recordings in {@code src/test/resources/gestures} for every scale type
+ * and prints the reports.
+ * It also checks that every fling settles and that coalesced moves are resolved only in frames.
+ * </p>
+ * <p>
+ * It's excluded from the normal unit tests because it takes long.
+ * Run it by {@code ./gradlew :lib:testDebugUnitTest -Preplay}.
+ * A recording from a jank report can be reproduced by adding it to {@link #RECORDINGS}.
+ * Files whose names end with {@code .trace} are read as traces
+ * dumped by {@link PinchableImageView#dumpGestureTrace(java.io.OutputStream)}.
+ * </p>
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class GestureReplayBenchmark {
+    private static final String[] RECORDINGS = {
+            "scroll_fling.txt",
+            "pinch.txt",
+    };
+
+    /** Replayed before measuring so that the classes are loaded and compiled */
+    private static final int WARMUP_COUNT = 3;
+
+    @Test
+    public void replay() throws IOException {
+        for (String name : RECORDINGS) {
+            final GestureRecording recording = readRecording(name);
+            for (ImageView.ScaleType scaleType : ImageView.ScaleType.values()) {
+                for (boolean coalescing : new boolean[] {false, true}) {
+                    final GestureReplayer replayer = new GestureReplayer(RuntimeEnvironment.application);
+                    replayer.setScaleType(scaleType);
+                    replayer.setMoveCoalescingEnabled(coalescing);
+                    for (int i = 0; i < WARMUP_COUNT; i++) {
+                        replayer.replay(recording);
+                    }
+                    final ReplayReport report = replayer.replay(recording);
+                    System.out.println(report);
+
+                    Assert.assertTrue(report + "\n  didn't settle",
+                            report.settleFrames < GestureReplayer.MAX_SETTLE_FRAMES);
+                    if (coalescing) {
+                        Assert.assertEquals(report + "\n  moves weren't coalesced", 0, report.moveUpdateCount);
+                    }
+                }
+            }
+        }
+    }
+
+    private static GestureRecording readRecording(String name) throws IOException {
+        final InputStream in = GestureReplayBenchmark.class.getResourceAsStream("/gestures/" + name);
+        if (in == null) {
+            throw new IOException(name + " is not found");
+        }
+        if (name.endsWith(".trace")) {
+            return GestureRecording.readTrace(name, in);
+        }
+        return GestureRecording.read(name, in);
+    }
+}
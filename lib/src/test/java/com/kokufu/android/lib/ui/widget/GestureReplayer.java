@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+import android.widget.ImageView;
+
+import com.kokufu.android.lib.ui.widget.viewport.ViewportEngine;
+import com.kokufu.android.lib.ui.widget.viewport.ViewportTransform;
+
+import org.robolectric.Robolectric;
+import org.robolectric.shadows.ShadowChoreographer;
+import org.robolectric.util.Scheduler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Replays a {@link GestureRecording} through {@link PinchableImageView#onTouchEvent(MotionEvent)}
+ * under Robolectric.
+ * </p>
+ * <p>
+ * The clock is the scheduler of the main looper, which only moves when the replayer advances it,
+ * and the frame callbacks of {@code Choreographer} are run every {@link #FRAME_INTERVAL_MILLIS}.
+ * So the same recording always produces the same frames.
+ * The cost of the frame callbacks is measured apart from the events,
+ * because coalesced moves and flings are handled there.
+ * Note that the allocations include the ones by the shadows of Robolectric.
+ * </p>
+ */
+final class GestureReplayer {
+    static final long FRAME_INTERVAL_MILLIS = 16;
+
+    /** The limit of frames to wait for a fling to settle */
+    static final int MAX_SETTLE_FRAMES = 600;
+
+    /**
+     * Counts the calls of {@link #invalidate()}.
+     */
+    private static final class CountingImageView extends PinchableImageView {
+        int invalidateCount;
+
+        CountingImageView(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void invalidate() {
+            invalidateCount++;
+            super.invalidate();
+        }
+
+        @Override
+        ViewportEngine createViewportEngine() {
+            return new CountingViewportEngine();
+        }
+    }
+
+    /**
+     * Counts the calls of {@link #clamp()}, including the ones by translate() and pinch().
+     */
+    private static final class CountingViewportEngine extends ViewportEngine {
+        int clampCount;
+
+        @Override
+        public void clamp() {
+            clampCount++;
+            super.clamp();
+        }
+    }
+
+    private final Context mContext;
+
+    private final ThreadMXBean mThreadMXBean = ManagementFactory.getThreadMXBean();
+
+    private ImageView.ScaleType mScaleType = ImageView.ScaleType.FIT_CENTER;
+
+    private int mImageWidth = 4000;
+
+    private int mImageHeight = 3000;
+
+    private int mViewWidth = 1080;
+
+    private int mViewHeight = 1920;
+
+    private boolean mMoveCoalescingEnabled;
+
+    GestureReplayer(Context context) {
+        mContext = context;
+    }
+
+    void setScaleType(ImageView.ScaleType scaleType) {
+        mScaleType = scaleType;
+    }
+
+    void setImageSize(int width, int height) {
+        mImageWidth = width;
+        mImageHeight = height;
+    }
+
+    void setViewSize(int width, int height) {
+        mViewWidth = width;
+        mViewHeight = height;
+    }
+
+    void setMoveCoalescingEnabled(boolean enabled) {
+        mMoveCoalescingEnabled = enabled;
+    }
+
+    ReplayReport replay(GestureRecording recording) {
+        // Frame callbacks are run at the next frame, as same as vsync.
+        ShadowChoreographer.setPostFrameCallbackDelay((int) FRAME_INTERVAL_MILLIS);
+        final Scheduler scheduler = Robolectric.getForegroundThreadScheduler();
+
+        final CountingImageView view = new CountingImageView(mContext);
+        view.setScaleType(mScaleType);
+        view.setImageDrawable(new BitmapDrawable(mContext.getResources(),
+                Bitmap.createBitmap(mImageWidth, mImageHeight, Bitmap.Config.RGB_565)));
+        view.setMoveCoalescingEnabled(mMoveCoalescingEnabled);
+        view.measure(View.MeasureSpec.makeMeasureSpec(mViewWidth, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(mViewHeight, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, mViewWidth, mViewHeight);
+
+        final String name = recording.getName() + " (" + mScaleType
+                + (mMoveCoalescingEnabled ? ", coalesced" : "") + ")";
+        final ReplayReport report = new ReplayReport(name, recording.getEvents().size());
+        final CountingViewportEngine engine = (CountingViewportEngine) view.getViewportEngine();
+        final ViewportTransform transform = engine.getTransform();
+        final float[] before = new float[4];
+        final float[] after = new float[4];
+        view.invalidateCount = 0;
+        engine.clampCount = 0;
+
+        final long downTime = SystemClock.uptimeMillis();
+        long time = downTime;
+        int i = 0;
+        for (GestureRecording.Event e : recording.getEvents()) {
+            // The frames between the events are run here
+            time = downTime + e.timeMillis;
+            runFrames(scheduler, time, report);
+
+            final MotionEvent event = e.obtain(downTime);
+            snapshot(transform, before);
+            final long allocatedBefore = getAllocatedBytes();
+            final long cpuBefore = mThreadMXBean.getCurrentThreadCpuTime();
+            view.onTouchEvent(event);
+            report.cpuNanos[i] = mThreadMXBean.getCurrentThreadCpuTime() - cpuBefore;
+            report.allocatedBytes[i] = allocatedBefore < 0 ? -1 : getAllocatedBytes() - allocatedBefore;
+            snapshot(transform, after);
+            if (e.actionMasked == MotionEvent.ACTION_MOVE && !Arrays.equals(before, after)) {
+                report.moveUpdateCount++;
+            }
+            event.recycle();
+            i++;
+        }
+
+        int frames = 0;
+        while (scheduler.size() > 0 && frames < MAX_SETTLE_FRAMES) {
+            time += FRAME_INTERVAL_MILLIS;
+            runFrames(scheduler, time, report);
+            frames++;
+        }
+        report.settleFrames = frames;
+        report.invalidateCount = view.invalidateCount;
+        report.clampCount = engine.clampCount;
+        return report;
+    }
+
+    /**
+     * Advance the clock, and add the cost of the frame callbacks run meanwhile to the report.
+     */
+    private void runFrames(Scheduler scheduler, long time, ReplayReport report) {
+        final long allocatedBefore = getAllocatedBytes();
+        final long cpuBefore = mThreadMXBean.getCurrentThreadCpuTime();
+        scheduler.advanceTo(time);
+        report.frameCpuNanos += mThreadMXBean.getCurrentThreadCpuTime() - cpuBefore;
+        if (allocatedBefore < 0) {
+            report.frameAllocatedBytes = -1;
+        } else {
+            report.frameAllocatedBytes += getAllocatedBytes() - allocatedBefore;
+        }
+    }
+
+    /**
+     * Copy the transform without {@link ViewportTransform#getValues(float[])},
+     * which would clear the dirty flag used by the view.
+     */
+    private static void snapshot(ViewportTransform transform, float[] out) {
+        out[0] = transform.getScaleX();
+        out[1] = transform.getScaleY();
+        out[2] = transform.getTranslateX();
+        out[3] = transform.getTranslateY();
+    }
+
+    private long getAllocatedBytes() {
+        if (mThreadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) mThreadMXBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The result of replaying a {@link GestureRecording}.
+ */
+final class ReplayReport {
+    private final String mName;
+
+    /** The CPU time of {@code onTouchEvent()} for each event */
+    final long[] cpuNanos;
+
+    /** The bytes allocated by {@code onTouchEvent()} for each event, or -1 if it's not supported */
+    final long[] allocatedBytes;
+
+    /** The CPU time of the frame callbacks, such as coalesced moves and fling frames */
+    long frameCpuNanos;
+
+    /** The bytes allocated by the frame callbacks, or -1 if it's not supported */
+    long frameAllocatedBytes;
+
+    /**
+     * The number of move events which have changed the transform while they are handled.
+     * It's 0 if the moves are coalesced, because they are resolved in the frames.
+     */
+    int moveUpdateCount;
+
+    /** The number of times the transform has been clamped, in the events and the frames */
+    int clampCount;
+
+    int invalidateCount;
+
+    /** The number of frames from the last event until no frame callback is pending */
+    int settleFrames;
+
+    ReplayReport(String name, int eventCount) {
+        mName = name;
+        cpuNanos = new long[eventCount];
+        allocatedBytes = new long[eventCount];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(mName).append('\n');
+
+        final long[] sorted = Arrays.copyOf(cpuNanos, cpuNanos.length);
+        Arrays.sort(sorted);
+        long totalCpu = 0;
+        long totalAllocated = 0;
+        for (int i = 0; i < cpuNanos.length; i++) {
+            totalCpu += cpuNanos[i];
+            totalAllocated += allocatedBytes[i];
+        }
+        final int n = Math.max(1, cpuNanos.length);
+        sb.append(String.format(Locale.US,
+                "  events: %d, cpu/event: mean %d ns, p50 %d ns, p99 %d ns, max %d ns%n",
+                cpuNanos.length, totalCpu / n, percentile(sorted, 0.50f), percentile(sorted, 0.99f),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+        sb.append(String.format(Locale.US, "  allocated/event: %d bytes%n", totalAllocated / n));
+        sb.append(String.format(Locale.US, "  frame callbacks: cpu %d ns, allocated %d bytes%n",
+                frameCpuNanos, frameAllocatedBytes));
+        sb.append(String.format(Locale.US, "  total: cpu %d ns%n", totalCpu + frameCpuNanos));
+        sb.append(String.format(Locale.US,
+                "  clamps: %d, move updates: %d, invalidates: %d, settle frames: %d",
+                clampCount, moveUpdateCount, invalidateCount, settleFrames));
+        return sb.toString();
+    }
+
+    private static long percentile(long[] sorted, float fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget.viewport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures the cost of one simulated touch event for each {@link ScaleMode}.
+ * Each benchmark method corresponds to the handling of one move event
+ * in {@code PinchableImageView}.
+ * </p>
+ * <p>
+ * Run it by {@code ./gradlew :viewport:jmh}.
+ * The allocations per event are reported as {@code gc.alloc.rate.norm} by the gc profiler,
+ * and should be 0.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ViewportEngineBenchmark {
+    private static final int IMAGE_WIDTH = 4000;
+
+    private static final int IMAGE_HEIGHT = 3000;
+
+    private static final int VIEW_WIDTH = 1080;
+
+    private static final int VIEW_HEIGHT = 1920;
+
+    /** The number of events in a simulated gesture */
+    private static final int EVENTS_NUM = 64;
+
+    @Param({"MATRIX", "FIT_XY", "FIT_START", "FIT_CENTER", "FIT_END", "CENTER", "CENTER_CROP", "CENTER_INSIDE"})
+    public ScaleMode scaleMode;
+
+    private final ViewportEngine mEngine = new ViewportEngine();
+
+    private final ViewportTransform mZoomBasisTransform = new ViewportTransform();
+
+    private final TranslationBounds mBounds = new TranslationBounds();
+
+    /** The deltas of a scroll, which goes back and forth so that it doesn't stick to an edge */
+    private final float[] mDeltas = new float[EVENTS_NUM];
+
+    /** The spans of a pinch, which zooms in and out across the scale limits */
+    private final float[] mSpans = new float[EVENTS_NUM];
+
+    private float mZoomBasisSpan;
+
+    private int mEventIndex;
+
+    @Setup
+    public void setUp() {
+        mEngine.setImageSize(IMAGE_WIDTH, IMAGE_HEIGHT);
+        mEngine.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+        mEngine.setScaleMode(scaleMode);
+        mEngine.setMinScale(0.25f);
+        mEngine.setMaxScale(4.0f);
+
+        mZoomBasisSpan = VIEW_WIDTH / 4.0f;
+        for (int i = 0; i < EVENTS_NUM; i++) {
+            final double phase = 2.0 * Math.PI * i / EVENTS_NUM;
+            // Sub-pixel deltas are included
+            mDeltas[i] = (float) (Math.sin(phase) * 37.5);
+            mSpans[i] = mZoomBasisSpan * (float) Math.pow(20.0, Math.sin(phase));
+        }
+
+        // Start from the middle of the image so that scrolls are not clamped at first
+        final ViewportTransform initial = new ViewportTransform();
+        initial.setValues(new float[] {1.0f, 0, (VIEW_WIDTH - IMAGE_WIDTH) / 2.0f,
+                0, 1.0f, (VIEW_HEIGHT - IMAGE_HEIGHT) / 2.0f, 0, 0, 1.0f});
+        mEngine.getTransform().set(initial);
+        mZoomBasisTransform.set(initial);
+    }
+
+    private int nextEvent() {
+        mEventIndex = (mEventIndex + 1) % EVENTS_NUM;
+        return mEventIndex;
+    }
+
+    /**
+     * A move event while scrolling, which is handled by {@code trackMotionScroll()}.
+     */
+    @Benchmark
+    public boolean scroll() {
+        final int i = nextEvent();
+        return mEngine.translate(mDeltas[i], mDeltas[EVENTS_NUM - 1 - i]);
+    }
+
+    /**
+     * A move event while pinching.
+     */
+    @Benchmark
+    public boolean pinch() {
+        final int i = nextEvent();
+        return mEngine.pinch(mZoomBasisTransform, mZoomBasisSpan, mSpans[i],
+                VIEW_WIDTH / 2.0f, VIEW_HEIGHT / 2.0f);
+    }
+
+    /**
+     * Clamping only, which used to be {@code checkMatrix()}.
+     */
+    @Benchmark
+    public float clamp() {
+        final int i = nextEvent();
+        mEngine.getTransform().setTranslateX(mDeltas[i] * 100);
+        mEngine.clamp();
+        return mEngine.getTransform().getTranslateX();
+    }
+
+    /**
+     * The calculation of the bounds at the start of a fling.
+     */
+    @Benchmark
+    public TranslationBounds translationBounds() {
+        mEngine.getTranslationBounds(mBounds);
+        return mBounds;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget.viewport;
+
+/**
+ * <p>
+ * How the image is placed in the view.
+ * The constants have the same names as {@code android.widget.ImageView.ScaleType},
+ * so that it can be converted by {@code ScaleMode.valueOf(scaleType.name())}.
+ * </p>
+ */
+public enum ScaleMode {
+    MATRIX,
+    FIT_XY,
+    FIT_START,
+    FIT_CENTER,
+    FIT_END,
+    CENTER,
+    CENTER_CROP,
+    CENTER_INSIDE
+}
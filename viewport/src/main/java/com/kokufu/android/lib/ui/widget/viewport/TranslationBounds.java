@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget.viewport;
+
+/**
+ * The range of the translation which is allowed for the current scale and scale mode.
+ * {@code left} and {@code right} are the range of x, {@code top} and {@code bottom} are the range of y.
+ */
+public final class TranslationBounds {
+    public float left;
+
+    public float top;
+
+    public float right;
+
+    public float bottom;
+
+    void set(float left, float top, float right, float bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget.viewport;
+
+/**
+ * <p>
+ * The math of scrolling and zooming, which doesn't depend on Android.
+ * It keeps a {@link ViewportTransform} within the bounds
+ * determined by the image size, the view size and the {@link ScaleMode}.
+ * </p>
+ * <p>
+ * None of the methods allocate objects, so that they can be called for every touch event.
+ * This class is not thread safe.
+ * </p>
+ * <p>
+ * It's not final so that a test can observe {@link #clamp()},
+ * which is also called by {@link #translate(float, float)} and
+ * {@link #pinch(ViewportTransform, float, float, float, float)}.
+ * </p>
+ */
+public class ViewportEngine {
+    private static final float DEFAULT_MIN_SCALE = 1.0f;
+
+    private static final float DEFAULT_MAX_SCALE = 5.0f;
+
+    private final ViewportTransform mTransform = new ViewportTransform();
+
+    /**
+     * Translation bounds which is used to avoid instantiating it every time.
+     * You must NOT use it across methods.
+     */
+    private final TranslationBounds mTmpBounds = new TranslationBounds();
+
+    private ScaleMode mScaleMode = ScaleMode.FIT_CENTER;
+
+    private int mImageWidth = -1;
+
+    private int mImageHeight = -1;
+
+    private int mViewWidth;
+
+    private int mViewHeight;
+
+    private float mMinScale = DEFAULT_MIN_SCALE;
+
+    private float mMaxScale = DEFAULT_MAX_SCALE;
+
+    /**
+     * @return the current transform. It's modified by this engine.
+     */
+    public ViewportTransform getTransform() {
+        return mTransform;
+    }
+
+    /**
+     * @param width the width of the image, or -1 if there is no image
+     * @param height the height of the image, or -1 if there is no image
+     */
+    public void setImageSize(int width, int height) {
+        mImageWidth = width;
+        mImageHeight = height;
+    }
+
+    public void setViewSize(int width, int height) {
+        mViewWidth = width;
+        mViewHeight = height;
+    }
+
+    public void setScaleMode(ScaleMode scaleMode) {
+        mScaleMode = scaleMode;
+    }
+
+    public ScaleMode getScaleMode() {
+        return mScaleMode;
+    }
+
+    public float getMinScale() {
+        return mMinScale;
+    }
+
+    public float getMaxScale() {
+        return mMaxScale;
+    }
+
+    /**
+     * set max scale
+     *
+     * @param scale if it's smaller than min scale, this method do nothing.
+     */
+    public void setMaxScale(float scale) {
+        if (mMinScale > scale) {
+            return;
+        }
+        mMaxScale = scale;
+    }
+
+    /**
+     * set min scale
+     *
+     * @param scale if it's larger than max scale, this method do nothing.
+     */
+    public void setMinScale(float scale) {
+        if (mMaxScale < scale) {
+            return;
+        }
+        mMinScale = scale;
+    }
+
+    /**
+     * Translate the transform and clamp it.
+     *
+     * @param deltaX Amount to offset from the previous event.
+     *               Positive numbers mean the user's finger is moving right the screen.
+     * @param deltaY Amount to offset from the previous event.
+     *               Positive numbers mean the user's finger is moving down the screen.
+     * @return true if we're already at the beginning/end of the view and have nothing to do.
+     */
+    public boolean translate(float deltaX, float deltaY) {
+        // Compared without rounding, because the deltas can be smaller than a pixel.
+        final float currentX = mTransform.getTranslateX();
+        final float currentY = mTransform.getTranslateY();
+
+        mTransform.postTranslate(deltaX, deltaY);
+
+        clamp();
+
+        return mTransform.getTranslateX() == currentX && mTransform.getTranslateY() == currentY;
+    }
+
+    /**
+     * Scale the transform of the start of the pinch by the ratio of the spans, and clamp it.
+     *
+     * @param basis the transform when the pinch started
+     * @param basisSpan the distance between the two pointers when the pinch started
+     * @param span the current distance between the two pointers
+     * @param pivotX the x of the middle point when the pinch started
+     * @param pivotY the y of the middle point when the pinch started
+     * @return true if the transform has been updated
+     */
+    public boolean pinch(ViewportTransform basis, float basisSpan, float span, float pivotX, float pivotY) {
+        final float baseScale = basis.getScaleX();
+        float newScale = baseScale * span / basisSpan;
+
+        if (Float.isNaN(newScale)) {
+            return false;
+        }
+
+        if (newScale < mMinScale) {
+            newScale = mMinScale;
+        }
+
+        if (newScale > mMaxScale) {
+            newScale = mMaxScale;
+        }
+
+        mTransform.set(basis);
+        mTransform.postScale(newScale / baseScale, pivotX, pivotY);
+
+        clamp();
+        return true;
+    }
+
+    /**
+     * Clamp the translation of the transform according to the scale mode.
+     */
+    public void clamp() {
+        if (mImageWidth < 0 || mImageHeight < 0) {
+            return;
+        }
+
+        final ViewportTransform transform = mTransform;
+        final TranslationBounds bounds = mTmpBounds;
+        getTranslationBounds(bounds);
+        if (transform.getTranslateX() < bounds.left) {
+            transform.setTranslateX(bounds.left);
+        } else if (transform.getTranslateX() > bounds.right) {
+            transform.setTranslateX(bounds.right);
+        }
+        if (transform.getTranslateY() < bounds.top) {
+            transform.setTranslateY(bounds.top);
+        } else if (transform.getTranslateY() > bounds.bottom) {
+            transform.setTranslateY(bounds.bottom);
+        }
+    }
+
+    /**
+     * Get the range of the translation which is allowed for the current scale and scale mode.
+     */
+    public void getTranslationBounds(TranslationBounds outBounds) {
+        int imageWidth = mImageWidth;
+        imageWidth *= mTransform.getScaleX();
+        int imageHeight = mImageHeight;
+        imageHeight *= mTransform.getScaleY();
+        final int viewWidth = mViewWidth;
+        final int viewHeight = mViewHeight;
+
+        switch (mScaleMode) {
+            case FIT_CENTER:
+            case CENTER:
+            case CENTER_CROP:
+            case CENTER_INSIDE: {
+                if (imageWidth < viewWidth) {
+                    outBounds.left = outBounds.right = (viewWidth - imageWidth) / 2.0f;
+                } else {
+                    outBounds.left = viewWidth - imageWidth;
+                    outBounds.right = 0;
+                }
+
+                if (imageHeight < viewHeight) {
+                    outBounds.top = outBounds.bottom = (viewHeight - imageHeight) / 2.0f;
+                } else {
+                    outBounds.top = viewHeight - imageHeight;
+                    outBounds.bottom = 0;
+                }
+                break;
+            }
+            case FIT_START: {
+                outBounds.set(0, 0, 0, 0);
+                break;
+            }
+            case FIT_END: {
+                outBounds.left = outBounds.right = viewWidth - imageWidth;
+                outBounds.top = outBounds.bottom = viewHeight - imageHeight;
+                break;
+            }
+            case FIT_XY:
+            default:
+                // Not limited
+                outBounds.set(-Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+                break;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget.viewport;
+
+/**
+ * <p>
+ * The transform which maps image coordinates to view coordinates.
+ * It consists of only scale and translation, as same as the image matrix
+ * which {@code android.widget.ImageView} configures.
+ * </p>
+ * <p>
+ * It's kept as plain floats so that touch events can be handled
+ * without calling native methods of {@code android.graphics.Matrix}.
+ * It's marked as dirty when it's changed, and should be pushed to the image matrix
+ * by {@link #getValues(float[])} once per frame.
+ * </p>
+ */
+public final class ViewportTransform {
+    /** The number of values which the matrix contains */
+    public static final int MATRIX_VALUES_NUM = 9;
+
+    // The indices of the matrix values, which are the same as android.graphics.Matrix
+    private static final int MSCALE_X = 0;
+    private static final int MSKEW_X = 1;
+    private static final int MTRANS_X = 2;
+    private static final int MSKEW_Y = 3;
+    private static final int MSCALE_Y = 4;
+    private static final int MTRANS_Y = 5;
+    private static final int MPERSP_0 = 6;
+    private static final int MPERSP_1 = 7;
+    private static final int MPERSP_2 = 8;
+
+    private float mScaleX = 1.0f;
+
+    private float mScaleY = 1.0f;
+
+    private float mTranslateX;
+
+    private float mTranslateY;
+
+    private boolean mDirty;
+
+    public float getScaleX() {
+        return mScaleX;
+    }
+
+    public float getScaleY() {
+        return mScaleY;
+    }
+
+    public float getTranslateX() {
+        return mTranslateX;
+    }
+
+    public float getTranslateY() {
+        return mTranslateY;
+    }
+
+    public void setTranslateX(float translateX) {
+        mTranslateX = translateX;
+        mDirty = true;
+    }
+
+    public void setTranslateY(float translateY) {
+        mTranslateY = translateY;
+        mDirty = true;
+    }
+
+    public void set(ViewportTransform src) {
+        mScaleX = src.mScaleX;
+        mScaleY = src.mScaleY;
+        mTranslateX = src.mTranslateX;
+        mTranslateY = src.mTranslateY;
+        mDirty = true;
+    }
+
+    /**
+     * Set the scale and translation of matrix values.
+     * Skew and perspective are ignored.
+     *
+     * @param values the values got by {@code Matrix#getValues(float[])}
+     */
+    public void setValues(float[] values) {
+        mScaleX = values[MSCALE_X];
+        mScaleY = values[MSCALE_Y];
+        mTranslateX = values[MTRANS_X];
+        mTranslateY = values[MTRANS_Y];
+        mDirty = true;
+    }
+
+    /**
+     * Copy this transform into matrix values, and clear the dirty flag.
+     *
+     * @param values the values to be passed to {@code Matrix#setValues(float[])}
+     */
+    public void getValues(float[] values) {
+        values[MSCALE_X] = mScaleX;
+        values[MSKEW_X] = 0;
+        values[MTRANS_X] = mTranslateX;
+        values[MSKEW_Y] = 0;
+        values[MSCALE_Y] = mScaleY;
+        values[MTRANS_Y] = mTranslateY;
+        values[MPERSP_0] = 0;
+        values[MPERSP_1] = 0;
+        values[MPERSP_2] = 1;
+        mDirty = false;
+    }
+
+    public void postTranslate(float deltaX, float deltaY) {
+        mTranslateX += deltaX;
+        mTranslateY += deltaY;
+        mDirty = true;
+    }
+
+    /**
+     * Scale this transform around a pivot point in view coordinates.
+     */
+    public void postScale(float scale, float pivotX, float pivotY) {
+        mScaleX *= scale;
+        mScaleY *= scale;
+        mTranslateX = pivotX + (mTranslateX - pivotX) * scale;
+        mTranslateY = pivotY + (mTranslateY - pivotY) * scale;
+        mDirty = true;
+    }
+
+    /**
+     * @return true if this transform has been changed after {@link #getValues(float[])} was called.
+     */
+    public boolean isDirty() {
+        return mDirty;
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2015 Yusuke Miura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kokufu.android.lib.ui.widget.viewport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <p>
+ * Checks that {@link ViewportEngine} keeps the behavior of {@code checkMatrix()}
+ * and {@code trackMotionScroll()} which used to be in {@code PinchableImageView}.
+ * </p>
+ */
+public class ViewportEngineTest {
+    private static final int IMAGE_WIDTH = 4000;
+
+    private static final int IMAGE_HEIGHT = 3000;
+
+    private static final int VIEW_WIDTH = 1080;
+
+    private static final int VIEW_HEIGHT = 1920;
+
+    private static final float[] SCALES = {0.1f, 0.25f, 0.27f, 0.5f, 0.64f, 1.0f, 2.5f};
+
+    private static final float[] TRANSLATIONS = {-5000.5f, -2920.0f, -1000.25f, -0.5f, 0.0f, 40.0f, 585.0f, 3000.0f};
+
+    private ViewportEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mEngine = new ViewportEngine();
+        mEngine.setImageSize(IMAGE_WIDTH, IMAGE_HEIGHT);
+        mEngine.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+    }
+
+    @Test
+    public void translationBoundsOfCenteredModes() {
+        final ScaleMode[] modes = {
+                ScaleMode.FIT_CENTER, ScaleMode.CENTER, ScaleMode.CENTER_CROP, ScaleMode.CENTER_INSIDE
+        };
+        for (ScaleMode mode : modes) {
+            mEngine.setScaleMode(mode);
+
+            // Smaller than the view. It's centered.
+            setTransform(0.25f, 0, 0);
+            assertBounds(mode, 40, 585, 40, 585);
+
+            // Larger than the view. It can be moved until its edges reach the edges of the view.
+            setTransform(1.0f, 0, 0);
+            assertBounds(mode, VIEW_WIDTH - IMAGE_WIDTH, VIEW_HEIGHT - IMAGE_HEIGHT, 0, 0);
+        }
+    }
+
+    @Test
+    public void translationBoundsOfFitStart() {
+        mEngine.setScaleMode(ScaleMode.FIT_START);
+        setTransform(0.25f, 0, 0);
+        assertBounds(ScaleMode.FIT_START, 0, 0, 0, 0);
+        setTransform(1.0f, 0, 0);
+        assertBounds(ScaleMode.FIT_START, 0, 0, 0, 0);
+    }
+
+    @Test
+    public void translationBoundsOfFitEnd() {
+        mEngine.setScaleMode(ScaleMode.FIT_END);
+        setTransform(0.25f, 0, 0);
+        assertBounds(ScaleMode.FIT_END, 80, 1170, 80, 1170);
+        setTransform(1.0f, 0, 0);
+        assertBounds(ScaleMode.FIT_END, VIEW_WIDTH - IMAGE_WIDTH, VIEW_HEIGHT - IMAGE_HEIGHT,
+                VIEW_WIDTH - IMAGE_WIDTH, VIEW_HEIGHT - IMAGE_HEIGHT);
+    }
+
+    @Test
+    public void translationBoundsOfUnlimitedModes() {
+        for (ScaleMode mode : new ScaleMode[] {ScaleMode.FIT_XY, ScaleMode.MATRIX}) {
+            mEngine.setScaleMode(mode);
+            setTransform(1.0f, 0, 0);
+            assertBounds(mode, -Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void clampMatchesCheckMatrix() {
+        final float[] expected = new float[4];
+        for (ScaleMode mode : ScaleMode.values()) {
+            mEngine.setScaleMode(mode);
+            for (float scale : SCALES) {
+                for (float translateX : TRANSLATIONS) {
+                    for (float translateY : TRANSLATIONS) {
+                        setTransform(scale, translateX, translateY);
+                        mEngine.clamp();
+
+                        expected[0] = scale;
+                        expected[1] = scale;
+                        expected[2] = translateX;
+                        expected[3] = translateY;
+                        checkMatrix(mode, expected);
+
+                        final String message = mode + " scale=" + scale
+                                + " translate=(" + translateX + ", " + translateY + ")";
+                        final ViewportTransform transform = mEngine.getTransform();
+                        assertEquals(message, expected[2], transform.getTranslateX(), 0);
+                        assertEquals(message, expected[3], transform.getTranslateY(), 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void clampWithoutImage() {
+        mEngine.setImageSize(-1, -1);
+        setTransform(1.0f, 3000, -5000);
+        mEngine.clamp();
+        assertEquals(3000, mEngine.getTransform().getTranslateX(), 0);
+        assertEquals(-5000, mEngine.getTransform().getTranslateY(), 0);
+    }
+
+    @Test
+    public void translateAtEdge() {
+        mEngine.setScaleMode(ScaleMode.FIT_CENTER);
+        setTransform(1.0f, 0, 0);
+
+        // Already at the top-left edges
+        assertTrue(mEngine.translate(10, 10));
+        assertTranslation(0, 0);
+
+        // Moves less than a pixel are not treated as no move
+        assertFalse(mEngine.translate(-0.25f, 0));
+        assertTranslation(-0.25f, 0);
+
+        // Only one axis can move
+        assertFalse(mEngine.translate(10, -10));
+        assertTranslation(0, -10);
+
+        // The centered image never moves
+        setTransform(0.25f, 40, 585);
+        assertTrue(mEngine.translate(5, -5));
+        assertTranslation(40, 585);
+    }
+
+    @Test
+    public void translateWithoutLimit() {
+        mEngine.setScaleMode(ScaleMode.FIT_XY);
+        setTransform(1.0f, 0, 0);
+        assertFalse(mEngine.translate(10, 10));
+        assertTranslation(10, 10);
+        assertTrue(mEngine.translate(0, 0));
+    }
+
+    @Test
+    public void pinchClampsToMaxScale() {
+        mEngine.setScaleMode(ScaleMode.FIT_CENTER);
+        mEngine.setMinScale(0.25f);
+        mEngine.setMaxScale(2.0f);
+        final ViewportTransform basis = transform(1.0f, -1000, -500);
+
+        assertTrue(mEngine.pinch(basis, 100, 1000, 540, 960));
+        final ViewportTransform transform = mEngine.getTransform();
+        assertEquals(2.0f, transform.getScaleX(), 0);
+        assertEquals(2.0f, transform.getScaleY(), 0);
+        // Scaled around the pivot
+        assertTranslation(540 + (-1000 - 540) * 2.0f, 960 + (-500 - 960) * 2.0f);
+    }
+
+    @Test
+    public void pinchClampsToMinScale() {
+        mEngine.setScaleMode(ScaleMode.FIT_CENTER);
+        mEngine.setMinScale(0.25f);
+        mEngine.setMaxScale(2.0f);
+        final ViewportTransform basis = transform(1.0f, -1000, -500);
+
+        assertTrue(mEngine.pinch(basis, 100, 1, 540, 960));
+        final ViewportTransform transform = mEngine.getTransform();
+        assertEquals(0.25f, transform.getScaleX(), 0);
+        assertEquals(0.25f, transform.getScaleY(), 0);
+        // Smaller than the view, so it's centered
+        assertTranslation(40, 585);
+    }
+
+    @Test
+    public void pinchClampsTranslation() {
+        mEngine.setScaleMode(ScaleMode.FIT_CENTER);
+        mEngine.setMinScale(0.25f);
+        final ViewportTransform basis = transform(1.0f, VIEW_WIDTH - IMAGE_WIDTH, VIEW_HEIGHT - IMAGE_HEIGHT);
+
+        // Zooming out around the top-left corner would move the right edge into the view,
+        // and the height becomes smaller than the view.
+        assertTrue(mEngine.pinch(basis, 100, 50, 0, 0));
+        assertEquals(0.5f, mEngine.getTransform().getScaleX(), 0);
+        assertTranslation(VIEW_WIDTH - IMAGE_WIDTH * 0.5f, (VIEW_HEIGHT - IMAGE_HEIGHT * 0.5f) / 2);
+    }
+
+    @Test
+    public void pinchWithoutSpan() {
+        final ViewportTransform basis = transform(1.0f, -100, -100);
+        setTransform(2.0f, -200, -300);
+        assertFalse(mEngine.pinch(basis, 0, 0, 540, 960));
+        assertEquals(2.0f, mEngine.getTransform().getScaleX(), 0);
+        assertTranslation(-200, -300);
+    }
+
+    private void setTransform(float scale, float translateX, float translateY) {
+        mEngine.getTransform().set(transform(scale, translateX, translateY));
+    }
+
+    private static ViewportTransform transform(float scale, float translateX, float translateY) {
+        final ViewportTransform transform = new ViewportTransform();
+        transform.setValues(new float[] {scale, 0, translateX, 0, scale, translateY, 0, 0, 1});
+        return transform;
+    }
+
+    private void assertBounds(ScaleMode mode, float left, float top, float right, float bottom) {
+        final TranslationBounds bounds = new TranslationBounds();
+        mEngine.getTranslationBounds(bounds);
+        assertEquals(mode.toString(), left, bounds.left, 0);
+        assertEquals(mode.toString(), top, bounds.top, 0);
+        assertEquals(mode.toString(), right, bounds.right, 0);
+        assertEquals(mode.toString(), bottom, bounds.bottom, 0);
+    }
+
+    private void assertTranslation(float translateX, float translateY) {
+        assertEquals(translateX, mEngine.getTransform().getTranslateX(), 0);
+        assertEquals(translateY, mEngine.getTransform().getTranslateY(), 0);
+    }
+
+    /**
+     * The clamping of {@code PinchableImageView.checkMatrix()} before it was moved into this module.
+     *
+     * @param values scale x, scale y, translate x and translate y, whose translation is clamped
+     */
+    private static void checkMatrix(ScaleMode mode, float[] values) {
+        int imageWidth = IMAGE_WIDTH;
+        imageWidth *= values[0];
+        int imageHeight = IMAGE_HEIGHT;
+        imageHeight *= values[1];
+
+        switch (mode) {
+            case FIT_CENTER:
+            case CENTER:
+            case CENTER_CROP:
+            case CENTER_INSIDE: {
+                if (imageWidth < VIEW_WIDTH) {
+                    values[2] = (VIEW_WIDTH - imageWidth) / 2.0f;
+                } else {
+                    if (values[2] > 0) {
+                        values[2] = 0;
+                    } else if (values[2] < VIEW_WIDTH - imageWidth) {
+                        values[2] = VIEW_WIDTH - imageWidth;
+                    }
+                }
+
+                if (imageHeight < VIEW_HEIGHT) {
+                    values[3] = (VIEW_HEIGHT - imageHeight) / 2.0f;
+                } else {
+                    if (values[3] > 0) {
+                        values[3] = 0;
+                    } else if (values[3] < VIEW_HEIGHT - imageHeight) {
+                        values[3] = VIEW_HEIGHT - imageHeight;
+                    }
+                }
+                break;
+            }
+            case FIT_START: {
+                values[2] = 0;
+                values[3] = 0;
+                break;
+            }
+            case FIT_END: {
+                values[2] = VIEW_WIDTH - imageWidth;
+                values[3] = VIEW_HEIGHT - imageHeight;
+                break;
+            }
+            case FIT_XY:
+            default:
+                // Do nothing
+                break;
+        }
+    }
+}